@@ -65,6 +65,7 @@ kotlin {
             languageSettings.optIn("kotlinx.coroutines.ExperimentalCoroutinesApi")
             languageSettings.optIn("kotlinx.cinterop.ExperimentalForeignApi")
             languageSettings.optIn("kotlinx.cinterop.BetaInteropApi")
+            languageSettings.optIn("kotlin.concurrent.atomics.ExperimentalAtomicApi")
         }
 
         commonMain {
@@ -81,6 +82,7 @@ kotlin {
             dependencies {
                 implementation(libs.kotlin.test)
                 implementation(libs.kotlinx.coroutines.test)
+                implementation(libs.ktor.client.mock)
             }
         }
 
@@ -150,6 +152,13 @@ kotlin {
     }
 }
 
+tasks.withType<Test>().configureEach {
+    // forward load test options, e.g. `-Dsocketio.load=true`
+    System.getProperties().stringPropertyNames()
+        .filter { it.startsWith("socketio.") }
+        .forEach { systemProperty(it, System.getProperty(it)) }
+}
+
 mavenPublishing {
     publishToMavenCentral()
 
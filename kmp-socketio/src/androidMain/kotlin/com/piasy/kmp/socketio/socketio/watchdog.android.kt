@@ -0,0 +1,10 @@
+package com.piasy.kmp.socketio.socketio
+
+internal actual fun currentThreadHandle(): Any? = Thread.currentThread()
+
+internal actual fun threadStack(thread: Any): String? {
+    if (thread !is Thread) {
+        return null
+    }
+    return thread.stackTrace.joinToString(separator = "\n\tat ", prefix = "\"${thread.name}\" ${thread.state}\n\tat ")
+}
@@ -20,6 +20,11 @@ open class Emitter {
     // to avoid concurrent modification error, we use two collections of listener.
     private val onceCallbacks = mutableMapOf<String, MutableList<Listener>>()
 
+    /**
+     * Opt-in timing of listener calls, null to call listeners directly.
+     */
+    internal var slowListenerDetector: SlowListenerDetector? = null
+
     /**
      * Listens on the event.
      * @param event event name.
@@ -34,11 +39,7 @@ open class Emitter {
 
     @CallerThread
     fun on(event: String, block: (Array<out Any>) -> Unit): Emitter {
-        return on(event, object : Listener {
-            override fun call(vararg args: Any) {
-                block(args)
-            }
-        })
+        return on(event, BlockListener(block))
     }
 
     private fun addListener(
@@ -68,11 +69,7 @@ open class Emitter {
 
     @CallerThread
     fun once(event: String, block: (Array<out Any>) -> Unit): Emitter {
-        return once(event, object : Listener {
-            override fun call(vararg args: Any) {
-                block(args)
-            }
-        })
+        return once(event, BlockListener(block))
     }
 
     /**
@@ -123,17 +120,17 @@ open class Emitter {
      */
     @CallerThread
     open fun emit(event: String, vararg args: Any): Emitter {
-        val actions = ArrayList<() -> Unit>()
-        callbacks[event]?.forEach {
-            actions.add { it.call(*args) }
-        }
-
-        onceCallbacks.remove(event)?.forEach {
-            actions.add { it.call(*args) }
-        }
-
-        for (action in actions) {
-            action()
+        val listeners = ArrayList<Listener>()
+        callbacks[event]?.let { listeners.addAll(it) }
+        onceCallbacks.remove(event)?.let { listeners.addAll(it) }
+
+        val detector = slowListenerDetector
+        for (listener in listeners) {
+            if (detector == null) {
+                listener.call(*args)
+            } else {
+                detector.call(event, listener, args)
+            }
         }
 
         return this
@@ -163,4 +160,28 @@ open class Emitter {
     fun hasListeners(event: String): Boolean {
         return !(callbacks[event].isNullOrEmpty() && onceCallbacks[event].isNullOrEmpty())
     }
+
+    /**
+     * Number of listeners of all events, e.g. to find listener leaks.
+     */
+    @CallerThread
+    internal fun listenerCount(): Int {
+        return callbacks.values.sumOf { it.size } + onceCallbacks.values.sumOf { it.size }
+    }
+
+    private class BlockListener(val block: (Array<out Any>) -> Unit) : Listener {
+        override fun call(vararg args: Any) {
+            block(args)
+        }
+    }
+
+    internal companion object {
+        /**
+         * Class of the listener, or of the block for listeners added with a block.
+         */
+        fun describe(listener: Listener): String {
+            val target: Any = if (listener is BlockListener) listener.block else listener
+            return target::class.toString()
+        }
+    }
 }
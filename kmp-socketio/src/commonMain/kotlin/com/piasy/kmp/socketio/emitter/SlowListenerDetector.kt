@@ -0,0 +1,21 @@
+package com.piasy.kmp.socketio.emitter
+
+import kotlin.time.TimeSource
+
+/**
+ * Times each listener call of an [Emitter], and reports the ones taking longer
+ * than `budgetMs`, with the event name and listener class.
+ */
+class SlowListenerDetector(
+    private val budgetMs: Long,
+    private val onSlow: (event: String, listener: String, micros: Long) -> Unit,
+) {
+    internal fun call(event: String, listener: Emitter.Listener, args: Array<out Any>) {
+        val start = TimeSource.Monotonic.markNow()
+        listener.call(*args)
+        val micros = start.elapsedNow().inWholeMicroseconds
+        if (micros > budgetMs * 1000) {
+            onSlow(event, Emitter.describe(listener), micros)
+        }
+    }
+}
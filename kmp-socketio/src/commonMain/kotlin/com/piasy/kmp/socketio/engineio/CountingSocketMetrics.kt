@@ -0,0 +1,179 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.AtomicReference
+
+/**
+ * [SocketMetrics] keeping counters and gauges in atomics, read them with [snapshot].
+ *
+ * One instance could be shared by multiple connections, then counters are summed,
+ * and gauges reflect the latest reported value.
+ */
+class CountingSocketMetrics : SocketMetrics {
+    private class TransportCounters {
+        val packetsOut = AtomicLong(0)
+        val bytesOut = AtomicLong(0)
+        val packetsIn = AtomicLong(0)
+        val bytesIn = AtomicLong(0)
+    }
+
+    // copy on write, there are only a few transports
+    private val transports = AtomicReference(emptyMap<String, TransportCounters>())
+
+    private val flushes = AtomicLong(0)
+    private val flushedPackets = AtomicLong(0)
+    private val writeBufferDepth = AtomicInt(0)
+    private val maxWriteBufferDepth = AtomicInt(0)
+    private val sendBufferDepth = AtomicInt(0)
+    private val maxSendBufferDepth = AtomicInt(0)
+    private val reconnectAttempts = AtomicLong(0)
+    private val upgrades = AtomicLong(0)
+    private val upgradeErrors = AtomicLong(0)
+    private val pingTimeouts = AtomicLong(0)
+    private val ackTimeouts = AtomicLong(0)
+    private val slowListeners = AtomicLong(0)
+    private val ackLatencies = AtomicReference(emptyMap<String, LatencyHistogram>())
+
+    override fun onPacketsSent(transport: String, packets: Int) {
+        counters(transport).packetsOut.addAndFetch(packets.toLong())
+    }
+
+    override fun onBytesSent(transport: String, bytes: Long) {
+        counters(transport).bytesOut.addAndFetch(bytes)
+    }
+
+    override fun onPacketReceived(transport: String) {
+        counters(transport).packetsIn.addAndFetch(1)
+    }
+
+    override fun onBytesReceived(transport: String, bytes: Long) {
+        counters(transport).bytesIn.addAndFetch(bytes)
+    }
+
+    override fun onFlush(packets: Int) {
+        flushes.addAndFetch(1)
+        flushedPackets.addAndFetch(packets.toLong())
+    }
+
+    override fun onWriteBufferDepth(depth: Int) {
+        writeBufferDepth.store(depth)
+        updateMax(maxWriteBufferDepth, depth)
+    }
+
+    override fun onSendBufferDepth(depth: Int) {
+        sendBufferDepth.store(depth)
+        updateMax(maxSendBufferDepth, depth)
+    }
+
+    override fun onReconnectAttempt(attempt: Int) {
+        reconnectAttempts.addAndFetch(1)
+    }
+
+    override fun onUpgrade(transport: String, success: Boolean) {
+        if (success) {
+            upgrades.addAndFetch(1)
+        } else {
+            upgradeErrors.addAndFetch(1)
+        }
+    }
+
+    override fun onPingTimeout() {
+        pingTimeouts.addAndFetch(1)
+    }
+
+    override fun onAckLatency(event: String, micros: Long, timedOut: Boolean) {
+        if (timedOut) {
+            ackTimeouts.addAndFetch(1)
+        }
+        getOrPut(ackLatencies, event) { LatencyHistogram() }.record(micros)
+    }
+
+    override fun onSlowListener(event: String, listener: String, micros: Long) {
+        slowListeners.addAndFetch(1)
+    }
+
+    /**
+     * Ack round-trip latency histogram of `event`, timeouts are recorded too,
+     * or null if no ack of it is finished yet.
+     */
+    fun ackLatency(event: String): LatencyHistogram? = ackLatencies.load()[event]
+
+    fun ackLatencyEvents(): Set<String> = ackLatencies.load().keys
+
+    /**
+     * Read current values, each value is read atomically, but not the snapshot as a whole.
+     */
+    fun snapshot(): Snapshot {
+        val transports = HashMap<String, TransportSnapshot>()
+        for ((name, counters) in this.transports.load()) {
+            transports[name] = TransportSnapshot(
+                counters.packetsOut.load(), counters.bytesOut.load(),
+                counters.packetsIn.load(), counters.bytesIn.load(),
+            )
+        }
+        return Snapshot(
+            transports = transports,
+            flushes = flushes.load(),
+            flushedPackets = flushedPackets.load(),
+            writeBufferDepth = writeBufferDepth.load(),
+            maxWriteBufferDepth = maxWriteBufferDepth.load(),
+            sendBufferDepth = sendBufferDepth.load(),
+            maxSendBufferDepth = maxSendBufferDepth.load(),
+            reconnectAttempts = reconnectAttempts.load(),
+            upgrades = upgrades.load(),
+            upgradeErrors = upgradeErrors.load(),
+            pingTimeouts = pingTimeouts.load(),
+            ackTimeouts = ackTimeouts.load(),
+            slowListeners = slowListeners.load(),
+        )
+    }
+
+    private fun counters(transport: String) = getOrPut(transports, transport) { TransportCounters() }
+
+    private inline fun <V> getOrPut(map: AtomicReference<Map<String, V>>, key: String, create: () -> V): V {
+        while (true) {
+            val current = map.load()
+            current[key]?.let { return it }
+            val value = create()
+            if (map.compareAndSet(current, current + (key to value))) {
+                return value
+            }
+        }
+    }
+
+    private fun updateMax(max: AtomicInt, value: Int) {
+        while (true) {
+            val current = max.load()
+            if (value <= current || max.compareAndSet(current, value)) {
+                return
+            }
+        }
+    }
+
+    data class TransportSnapshot(
+        val packetsOut: Long,
+        val bytesOut: Long,
+        val packetsIn: Long,
+        val bytesIn: Long,
+    )
+
+    data class Snapshot(
+        val transports: Map<String, TransportSnapshot>,
+        val flushes: Long,
+        val flushedPackets: Long,
+        val writeBufferDepth: Int,
+        val maxWriteBufferDepth: Int,
+        val sendBufferDepth: Int,
+        val maxSendBufferDepth: Int,
+        val reconnectAttempts: Long,
+        val upgrades: Long,
+        val upgradeErrors: Long,
+        val pingTimeouts: Long,
+        val ackTimeouts: Long,
+        val slowListeners: Long,
+    ) {
+        val packetsPerFlush: Double
+            get() = if (flushes == 0L) 0.0 else flushedPackets.toDouble() / flushes
+    }
+}
@@ -1,6 +1,7 @@
 package com.piasy.kmp.socketio.engineio
 
 import com.piasy.kmp.socketio.emitter.Emitter
+import com.piasy.kmp.socketio.emitter.SlowListenerDetector
 import com.piasy.kmp.socketio.engineio.transports.DefaultTransportFactory
 import com.piasy.kmp.socketio.engineio.transports.PollingXHR
 import com.piasy.kmp.socketio.engineio.transports.TransportFactory
@@ -39,6 +40,21 @@ class EngineSocket(
 
         @JvmField
         var transportOptions: Map<String, Transport.Options> = emptyMap()
+
+        /**
+         * Time budget of each listener call in milliseconds, listeners of EngineSocket,
+         * Manager and Socket taking longer are logged and reported to [metrics].
+         * Defaults to 0, listener calls aren't timed.
+         */
+        @JvmField
+        var listenerBudget: Long = 0
+
+        /**
+         * Factory of transports created by Manager, e.g. an in-process server
+         * stand-in for tests and benchmarks. Defaults to [DefaultTransportFactory].
+         */
+        @JvmField
+        var transportFactory: TransportFactory = DefaultTransportFactory
     }
 
     internal var disablePingTimeout = false // to help unit test
@@ -54,6 +70,17 @@ class EngineSocket(
     internal val writeBuffer = ArrayDeque<EngineIOPacket<*>>()
     private var prevBufferLen = 0
 
+    // number of packets removed from the head of writeBuffer,
+    // used to turn the absolute positions below into writeBuffer index.
+    private var writeBufferHead = 0L
+    private val conflatedPositions = HashMap<Any, Long>()
+
+    /**
+     * Whether packets sent now will be flushed to transport immediately.
+     */
+    internal val writable: Boolean
+        get() = state == State.OPEN && transport?.writable == true && !upgrading
+
     private val heartbeatListener = object : Listener {
         override fun call(vararg args: Any) {
             onHeartBeat()
@@ -62,6 +89,8 @@ class EngineSocket(
     private var pingTimeoutJob: Job? = null
 
     init {
+        slowListenerDetector = slowListenerDetector(opt, TAG)
+
         val url = Url(uri)
         opt.secure = url.protocol == URLProtocol.HTTPS
                 || url.protocol == URLProtocol.WSS
@@ -143,6 +172,32 @@ class EngineSocket(
         sendPackets(packets)
     }
 
+    /**
+     * Sends a packet, replacing the packet sent with the same `key` if that one
+     * is still waiting in writeBuffer (not flushed to transport yet).
+     *
+     * @param key conflation key.
+     * @param packet
+     */
+    @WorkThread
+    fun sendConflated(key: Any, packet: EngineIOPacket<*>) {
+        val pos = conflatedPositions[key]
+        if (pos != null) {
+            val index = pos - writeBufferHead
+            if (index >= prevBufferLen && index < writeBuffer.size) {
+                Logging.debug(TAG) { "sendConflated: replace $key at $index with $packet" }
+                writeBuffer[index.toInt()] = packet
+                return
+            }
+        }
+        if (state != State.OPENING && state != State.OPEN) {
+            Logging.error(TAG, "sendConflated at wrong state: $state")
+            return
+        }
+        conflatedPositions[key] = writeBufferHead + writeBuffer.size
+        sendPackets(listOf(packet))
+    }
+
     /**
      * Disconnects the client.
      *
@@ -219,6 +274,9 @@ class EngineSocket(
         opts.extraHeaders = opt.extraHeaders
         opts.trustAllCerts = opt.trustAllCerts
         opts.httpClient = options?.httpClient ?: opt.httpClient
+        opts.metrics = options?.metrics ?: opt.metrics
+        opts.tracer = options?.tracer ?: opt.tracer
+        opts.recorder = options?.recorder ?: opt.recorder
 
         val transport = factory.create(name, opts, scope, rawMessage)
         emit(EVENT_TRANSPORT, transport)
@@ -281,6 +339,9 @@ class EngineSocket(
             writeBuffer.removeAt(0)
         }
         prevBufferLen -= len
+        writeBufferHead += len
+        opt.tracer?.onDrain(transport?.name ?: "", len)
+        opt.metrics?.onWriteBufferDepth(writeBuffer.size)
 
         if (writeBuffer.isEmpty()) {
             Logging.debug(TAG) { "onDrain fire socket drain event" }
@@ -300,6 +361,7 @@ class EngineSocket(
 
         emit(EVENT_PACKET_CREATE, packets.size)
         writeBuffer.addAll(packets)
+        opt.metrics?.onWriteBufferDepth(writeBuffer.size)
         flush()
     }
 
@@ -338,6 +400,7 @@ class EngineSocket(
         emit(EVENT_HANDSHAKE, pkt)
         id = pkt.sid
         transport?.opt?.query?.set(SID, id)
+        opt.tracer?.onHandshake(transport?.name ?: "", id)
         upgrades = filterUpgrades(pkt.upgrades)
         pingInterval = pkt.pingInterval
         pingTimeout = pkt.pingTimeout
@@ -389,6 +452,8 @@ class EngineSocket(
         ) {
             val packets = writeBuffer.subList(prevBufferLen, writeBuffer.size)
             prevBufferLen = writeBuffer.size
+            opt.metrics?.onFlush(packets.size)
+            opt.tracer?.onFlush(transport?.name ?: "", packets.size)
             transport?.send(ArrayList(packets))
             emit(EVENT_FLUSH)
         } else {
@@ -402,6 +467,7 @@ class EngineSocket(
     @WorkThread
     private fun probe(name: String) {
         Logging.info(TAG, "probing transport '$name'")
+        opt.tracer?.onProbe(name, SocketTracer.ProbePhase.START)
         val transport = createTransport(name)
         var failed = false
         priorWebsocketSuccess = false
@@ -417,6 +483,7 @@ class EngineSocket(
                 }
 
                 transport.send(listOf(EngineIOPacket.Ping(PROBE)))
+                opt.tracer?.onProbe(name, SocketTracer.ProbePhase.OPEN)
                 transport.once(Transport.EVENT_PACKET, object : Listener {
                     override fun call(vararg args: Any) {
                         if (failed) {
@@ -426,6 +493,7 @@ class EngineSocket(
                             && (args[0] as EngineIOPacket.Pong).payload == PROBE
                         ) {
                             Logging.info(TAG, "probe transport $name pong")
+                            opt.tracer?.onProbe(name, SocketTracer.ProbePhase.PONG)
                             upgrading = true
                             emit(EVENT_UPGRADING, transport)
                             if (cleaned) {
@@ -444,6 +512,8 @@ class EngineSocket(
                                 transport.once(EVENT_DRAIN, object : Listener {
                                     override fun call(vararg args: Any) {
                                         Logging.info(TAG, "upgrade packet send success")
+                                        opt.metrics?.onUpgrade(transport.name, true)
+                                        opt.tracer?.onProbe(transport.name, SocketTracer.ProbePhase.UPGRADED)
                                         emit(EVENT_UPGRADE, transport)
                                         setTransport(transport)
                                         cleaned = true
@@ -455,6 +525,8 @@ class EngineSocket(
                             }
                         } else {
                             Logging.error(TAG, "probe transport $name failed")
+                            opt.metrics?.onUpgrade(name, false)
+                            opt.tracer?.onProbe(name, SocketTracer.ProbePhase.FAILED)
                             emit(EVENT_UPGRADE_ERROR, PROBE_ERROR)
                         }
                     }
@@ -477,6 +549,8 @@ class EngineSocket(
             override fun call(vararg args: Any) {
                 freezeTransport.call()
                 Logging.error(TAG, "probe transport $name failed because of error: ${args.joinToString()}")
+                opt.metrics?.onUpgrade(name, false)
+                opt.tracer?.onProbe(name, SocketTracer.ProbePhase.FAILED)
                 emit(EVENT_UPGRADE_ERROR, PROBE_ERROR)
             }
         }
@@ -530,6 +604,7 @@ class EngineSocket(
         pingTimeoutJob = scope.launch {
             delay((pingInterval + pingTimeout).toLong())
             if (!inactive()) {
+                opt.metrics?.onPingTimeout()
                 onClose("ping timeout")
             }
         }
@@ -573,6 +648,9 @@ class EngineSocket(
         // grab the buffers on `close` event
         writeBuffer.clear()
         prevBufferLen = 0
+        writeBufferHead = 0
+        conflatedPositions.clear()
+        opt.metrics?.onWriteBufferDepth(0)
     }
 
     private fun inactive() = state != State.OPENING
@@ -584,6 +662,16 @@ class EngineSocket(
         private const val PROBE_ERROR = "probe error"
         private var priorWebsocketSuccess = false
 
+        internal fun slowListenerDetector(opt: Options, tag: String): SlowListenerDetector? {
+            if (opt.listenerBudget <= 0) {
+                return null
+            }
+            return SlowListenerDetector(opt.listenerBudget) { event, listener, micros ->
+                Logging.error(tag, "slow listener of `$event`: $listener took $micros us")
+                opt.metrics?.onSlowListener(event, listener, micros)
+            }
+        }
+
         internal const val PROBE = "probe"
         internal const val SID = "sid"
 
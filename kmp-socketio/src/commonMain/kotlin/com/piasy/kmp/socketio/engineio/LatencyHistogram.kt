@@ -0,0 +1,93 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.concurrent.atomics.AtomicLongArray
+import kotlin.math.ceil
+
+/**
+ * Lock-free log-linear histogram of latency in microseconds, like HdrHistogram.
+ *
+ * Each power of 2 range is split into [SUB_BUCKETS] linear buckets, so the relative
+ * error of percentiles is within 1/32, values up to 2^42 us (about 50 days) are
+ * tracked, bigger values are clamped. Recording is an atomic add, reading percentiles
+ * scans all buckets, it's meant for runtime queries, not for the hot path.
+ */
+class LatencyHistogram {
+    private val buckets = AtomicLongArray(BUCKETS)
+    private val sum = AtomicLong(0)
+    private val max = AtomicLong(0)
+
+    fun record(micros: Long) {
+        val value = micros.coerceIn(0, MAX_VALUE)
+        buckets.addAndFetchAt(index(value), 1)
+        sum.addAndFetch(value)
+        while (true) {
+            val current = max.load()
+            if (value <= current || max.compareAndSet(current, value)) {
+                break
+            }
+        }
+    }
+
+    val count: Long
+        get() {
+            var count = 0L
+            for (i in 0..<BUCKETS) {
+                count += buckets.loadAt(i)
+            }
+            return count
+        }
+
+    val maxValue: Long
+        get() = max.load()
+
+    val mean: Double
+        get() {
+            val count = count
+            return if (count == 0L) 0.0 else sum.load().toDouble() / count
+        }
+
+    /**
+     * @param percentile in (0, 100].
+     * @return the highest value equivalent to the one at `percentile`, or 0 if empty.
+     */
+    fun percentile(percentile: Double): Long {
+        val counts = LongArray(BUCKETS) { buckets.loadAt(it) }
+        val total = counts.sum()
+        if (total == 0L) {
+            return 0
+        }
+        val target = maxOf(1L, ceil(total * percentile / 100).toLong())
+        var seen = 0L
+        for (i in 0..<BUCKETS) {
+            seen += counts[i]
+            if (seen >= target) {
+                return minOf(highestValue(i), max.load())
+            }
+        }
+        return max.load()
+    }
+
+    override fun toString() = "LatencyHistogram(count=$count, p50=${percentile(50.0)}, " +
+            "p99=${percentile(99.0)}, max=$maxValue)"
+
+    companion object {
+        private const val SUB_BITS = 5
+        private const val SUB_BUCKETS = 1 shl SUB_BITS
+        private const val MAX_SHIFT = 36
+        private const val BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS
+        private const val MAX_VALUE = (1L shl (MAX_SHIFT + SUB_BITS + 1)) - 1
+
+        internal fun index(value: Long): Int {
+            val exp = 63 - value.countLeadingZeroBits()
+            val shift = maxOf(0, exp - SUB_BITS)
+            return (shift shl SUB_BITS) + (value ushr shift).toInt()
+        }
+
+        internal fun highestValue(index: Int): Long {
+            val shift = maxOf(0, (index shr SUB_BITS) - 1)
+            val base = (index - (shift shl SUB_BITS)).toLong()
+            return (base shl shift) + (1L shl shift) - 1
+        }
+    }
+}
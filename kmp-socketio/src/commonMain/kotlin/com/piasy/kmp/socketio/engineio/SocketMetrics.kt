@@ -0,0 +1,62 @@
+package com.piasy.kmp.socketio.engineio
+
+/**
+ * Metrics sink of a connection, set it with [Transport.Options.metrics].
+ *
+ * Callbacks are invoked synchronously, mostly on work thread, but transports may
+ * report bytes from io thread, so implementations must be thread safe and cheap.
+ * When no sink is installed, nothing is counted.
+ */
+interface SocketMetrics {
+    /**
+     * Packets handed to [transport] for sending.
+     */
+    fun onPacketsSent(transport: String, packets: Int) {}
+
+    /**
+     * Encoded bytes written by [transport].
+     */
+    fun onBytesSent(transport: String, bytes: Long) {}
+
+    /**
+     * A packet decoded by [transport].
+     */
+    fun onPacketReceived(transport: String) {}
+
+    /**
+     * Encoded bytes read by [transport].
+     */
+    fun onBytesReceived(transport: String, bytes: Long) {}
+
+    /**
+     * [EngineSocket] flushed [packets] packets of its write buffer to transport.
+     */
+    fun onFlush(packets: Int) {}
+
+    /**
+     * Current size of [EngineSocket] write buffer, including packets in flight.
+     */
+    fun onWriteBufferDepth(depth: Int) {}
+
+    /**
+     * Current size of socket.io Socket send buffer, packets buffered before connected.
+     */
+    fun onSendBufferDepth(depth: Int) {}
+
+    fun onReconnectAttempt(attempt: Int) {}
+
+    fun onUpgrade(transport: String, success: Boolean) {}
+
+    fun onPingTimeout() {}
+
+    /**
+     * Time from emitting [event] with ack to receiving its ack, or timed out,
+     * including the time queued before connected or waiting for ack credit.
+     */
+    fun onAckLatency(event: String, micros: Long, timedOut: Boolean) {}
+
+    /**
+     * A [listener] of [event] took longer than `listenerBudget`.
+     */
+    fun onSlowListener(event: String, listener: String, micros: Long) {}
+}
@@ -0,0 +1,79 @@
+package com.piasy.kmp.socketio.engineio
+
+/**
+ * Tracing hooks of connection lifecycles, set it with [Transport.Options.tracer].
+ *
+ * All callbacks are invoked synchronously on work thread, in the order the steps
+ * happen, timestamps should be taken by the implementation. When no tracer is
+ * installed, hooks are skipped by a null check.
+ *
+ * An emit with ack goes through [onEmit] (packet created, maybe buffered) and
+ * [onAck] (server acknowledged), matched by namespace and ack id. [onFlush] and
+ * [onDrain] only carry aggregate packet counts of transport writes, they can't
+ * be matched to emits.
+ */
+interface SocketTracer {
+    enum class ProbePhase {
+        /** probe transport created and opening. */
+        START,
+
+        /** probe transport opened, ping probe sent. */
+        OPEN,
+
+        /** pong probe received, pausing current transport. */
+        PONG,
+
+        /** upgrade packet sent, transport switched. */
+        UPGRADED,
+
+        /** probe failed, transport closed. */
+        FAILED,
+    }
+
+    /**
+     * Manager starts connecting, `Manager.open` or a reconnect attempt.
+     */
+    fun onOpenStart(uri: String) {}
+
+    /**
+     * Manager connection finished, [error] is null on success.
+     */
+    fun onOpenEnd(uri: String, error: String?) {}
+
+    /**
+     * EngineSocket handshake packet received on [transport].
+     */
+    fun onHandshake(transport: String, sid: String) {}
+
+    fun onProbe(transport: String, phase: ProbePhase) {}
+
+    /**
+     * socket.io CONNECT packet of [nsp] sent.
+     */
+    fun onSocketConnectStart(nsp: String) {}
+
+    /**
+     * socket.io CONNECT packet of [nsp] acknowledged by server.
+     */
+    fun onSocketConnectEnd(nsp: String, sid: String) {}
+
+    /**
+     * Event packet created, it's buffered if [nsp] isn't connected yet.
+     *
+     * @param ackId null if no ack.
+     */
+    fun onEmit(nsp: String, event: String, ackId: Int?) {}
+
+    /**
+     * EngineSocket wrote [packets] packets of its write buffer to [transport],
+     * including engine.io packets like ping and pong.
+     */
+    fun onFlush(transport: String, packets: Int) {}
+
+    /**
+     * [transport] finished writing [packets] packets.
+     */
+    fun onDrain(transport: String, packets: Int) {}
+
+    fun onAck(nsp: String, ackId: Int) {}
+}
@@ -0,0 +1,218 @@
+package com.piasy.kmp.socketio.engineio
+
+import com.piasy.kmp.socketio.engineio.transports.PollingXHR
+import com.piasy.kmp.socketio.engineio.transports.WebSocket
+import com.piasy.kmp.xlog.Logging
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.launch
+import kotlinx.io.Sink
+import kotlinx.io.Source
+import kotlinx.io.buffered
+import kotlinx.io.bytestring.ByteString
+import kotlinx.io.files.Path
+import kotlinx.io.files.SystemFileSystem
+import kotlinx.io.readByteArray
+import kotlin.concurrent.atomics.AtomicLong
+import kotlin.time.TimeSource
+
+/**
+ * Dispatcher of [TrafficRecorder] writers, for blocking writes where the platform has one.
+ */
+internal expect val recorderDispatcher: CoroutineDispatcher
+
+/**
+ * Records raw frames of transports into a compact binary log, set it with
+ * [Transport.Options.recorder], and replay it with
+ * [com.piasy.kmp.socketio.engineio.transports.TrafficReplayer].
+ *
+ * Frames are websocket frames, or http bodies of polling requests, timestamped
+ * when they are sent or received. Recording only enqueues the frame, it's written
+ * to [sink] by a coroutine on [dispatcher], so it's safe to call from any thread.
+ * The default dispatcher is `Dispatchers.IO` where available, since writes may block.
+ * At most `capacity` frames are queued, more are dropped and counted by
+ * [droppedFrames]. If writing fails, the error is logged and recording stops.
+ *
+ * Log format, varints are unsigned LEB128:
+ * ```
+ * log    := "SIOT" version:u8 record*
+ * record := deltaMicros:varint flags:u8 length:varint data[length]
+ * flags  := bit0 outgoing | bit1 binary | bit2 polling (websocket if unset)
+ * ```
+ * `deltaMicros` is the time since the previous record. Frames recorded from
+ * different threads may be queued out of time order, such a frame is written
+ * with delta 0, i.e. its time is raised to the previous record's. Transports
+ * record on the work thread, so their frames are always in order.
+ */
+class TrafficRecorder(
+    private val sink: Sink,
+    timeSource: TimeSource = TimeSource.Monotonic,
+    capacity: Int = DEFAULT_CAPACITY,
+    dispatcher: CoroutineDispatcher = recorderDispatcher,
+) {
+    /**
+     * A recorded frame.
+     *
+     * @param timeMicros time since recording started.
+     * @param data String for text frame, or ByteString for binary frame.
+     */
+    class Frame(
+        val timeMicros: Long,
+        val transport: String,
+        val outgoing: Boolean,
+        val data: Any,
+    )
+
+    private val start = timeSource.markNow()
+    private val frames = Channel<Frame>(capacity)
+    private val dropped = AtomicLong(0)
+    private val scope = CoroutineScope(dispatcher + SupervisorJob())
+    private val writer = scope.launch {
+        try {
+            sink.write(MAGIC)
+            sink.writeByte(VERSION)
+            var last = 0L
+            for (frame in frames) {
+                write(frame, last)
+                last = maxOf(last, frame.timeMicros)
+                if (frames.isEmpty) {
+                    sink.flush()
+                }
+            }
+            sink.close()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            Logging.error(TAG, "stop recording, write error: ${e.message}")
+            // discard queued frames, and fail later records
+            frames.cancel()
+            try {
+                sink.close()
+            } catch (e: Exception) {
+                Logging.error(TAG, "close error: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * Number of frames dropped because the queue was full.
+     */
+    val droppedFrames: Long
+        get() = dropped.load()
+
+    fun record(transport: String, outgoing: Boolean, data: String) {
+        enqueue(Frame(start.elapsedNow().inWholeMicroseconds, transport, outgoing, data))
+    }
+
+    fun record(transport: String, outgoing: Boolean, data: ByteArray) {
+        enqueue(Frame(start.elapsedNow().inWholeMicroseconds, transport, outgoing, ByteString(data)))
+    }
+
+    private fun enqueue(frame: Frame) {
+        val result = frames.trySend(frame)
+        if (result.isFailure && !result.isClosed) {
+            dropped.addAndFetch(1)
+        }
+    }
+
+    /**
+     * Stop recording, and wait for recorded frames to be written.
+     */
+    suspend fun close() {
+        frames.close()
+        writer.join()
+        scope.cancel()
+    }
+
+    private fun write(frame: Frame, last: Long) {
+        val data = frame.data
+        val bytes = if (data is ByteString) data.toByteArray() else (data as String).encodeToByteArray()
+        var flags = 0
+        if (frame.outgoing) {
+            flags = flags or OUTGOING
+        }
+        if (data is ByteString) {
+            flags = flags or BINARY
+        }
+        if (frame.transport == PollingXHR.NAME) {
+            flags = flags or POLLING
+        }
+        // out of order frames are clamped, see the format above
+        writeVarint(sink, maxOf(0, frame.timeMicros - last))
+        sink.writeByte(flags.toByte())
+        writeVarint(sink, bytes.size.toLong())
+        sink.write(bytes)
+    }
+
+    companion object {
+        private const val TAG = "TrafficRecorder"
+        private const val DEFAULT_CAPACITY = 4096
+        private val MAGIC = "SIOT".encodeToByteArray()
+        private const val VERSION: Byte = 1
+        private const val OUTGOING = 1
+        private const val BINARY = 2
+        private const val POLLING = 4
+
+        /**
+         * Record into file at [path], it's overwritten if exists.
+         */
+        fun toFile(path: String) = TrafficRecorder(SystemFileSystem.sink(Path(path)).buffered())
+
+        /**
+         * Read all frames of a log, [source] is closed after reading.
+         */
+        fun read(source: Source): List<Frame> = source.use {
+            if (!source.readByteArray(MAGIC.size).contentEquals(MAGIC)) {
+                throw IllegalArgumentException("Not a traffic log")
+            }
+            val version = source.readByte()
+            if (version != VERSION) {
+                throw IllegalArgumentException("Unsupported traffic log version $version")
+            }
+            val frames = ArrayList<Frame>()
+            var time = 0L
+            while (!source.exhausted()) {
+                time += readVarint(source)
+                val flags = source.readByte().toInt()
+                val bytes = source.readByteArray(readVarint(source).toInt())
+                frames.add(
+                    Frame(
+                        time,
+                        if (flags and POLLING != 0) PollingXHR.NAME else WebSocket.NAME,
+                        flags and OUTGOING != 0,
+                        if (flags and BINARY != 0) ByteString(bytes) else bytes.decodeToString(),
+                    )
+                )
+            }
+            frames
+        }
+
+        fun readFile(path: String) = read(SystemFileSystem.source(Path(path)).buffered())
+
+        private fun writeVarint(sink: Sink, value: Long) {
+            var v = value
+            while (v >= 0x80) {
+                sink.writeByte(((v and 0x7F) or 0x80).toByte())
+                v = v ushr 7
+            }
+            sink.writeByte(v.toByte())
+        }
+
+        private fun readVarint(source: Source): Long {
+            var value = 0L
+            var shift = 0
+            while (true) {
+                val b = source.readByte().toInt()
+                value = value or ((b and 0x7F).toLong() shl shift)
+                if (b and 0x80 == 0) {
+                    return value
+                }
+                shift += 7
+            }
+        }
+    }
+}
@@ -49,6 +49,24 @@ abstract class Transport(
          */
         @JvmField
         var httpClient: HttpClient? = null
+
+        /**
+         * Optional metrics sink, nothing is counted when it's null.
+         */
+        @JvmField
+        var metrics: SocketMetrics? = null
+
+        /**
+         * Optional tracer of connection lifecycles, hooks are skipped when it's null.
+         */
+        @JvmField
+        var tracer: SocketTracer? = null
+
+        /**
+         * Optional recorder of raw frames, nothing is recorded when it's null.
+         */
+        @JvmField
+        var recorder: TrafficRecorder? = null
     }
 
     protected var state = State.INIT
@@ -68,6 +86,7 @@ abstract class Transport(
     fun send(packets: List<EngineIOPacket<*>>) {
         logD { "send: state $state, ${packets.size} packets" }
         if (state == State.OPEN) {
+            opt.metrics?.onPacketsSent(name, packets.size)
             doSend(packets)
         } else {
             onError("Transport not open")
@@ -101,6 +120,7 @@ abstract class Transport(
     @WorkThread
     protected fun onPacket(packet: EngineIOPacket<*>) {
         logD { "onPacket $packet" }
+        opt.metrics?.onPacketReceived(name)
         emit(EVENT_PACKET, packet)
     }
 
@@ -172,6 +192,29 @@ abstract class Transport(
     }
 
     companion object {
+        /**
+         * UTF-8 encoded size of [str], without encoding it.
+         */
+        internal fun utf8Size(str: String): Long {
+            var size = 0L
+            var i = 0
+            while (i < str.length) {
+                val c = str[i]
+                size += when {
+                    c.code < 0x80 -> 1
+                    c.code < 0x800 -> 2
+                    c.isHighSurrogate() && i + 1 < str.length && str[i + 1].isLowSurrogate() -> {
+                        i++
+                        4
+                    }
+
+                    else -> 3
+                }
+                i++
+            }
+            return size
+        }
+
         // all internal events are emitted from work thread.
         const val EVENT_OPEN: String = "open"
         const val EVENT_CLOSE: String = "close"
@@ -25,6 +25,10 @@ open class PollingXHR(
 ) : Transport(opt, scope, NAME, rawMessage) {
     private var polling = false
 
+    init {
+        transportObserver?.onTransport(this, scope, ioScope)
+    }
+
     @WorkThread
     override fun pause(onPause: () -> Unit) {
         logI("pause")
@@ -139,6 +143,8 @@ open class PollingXHR(
     @WorkThread
     private fun onPollComplete(data: String) {
         logD { "onPollComplete: state $state, `$data`" }
+        opt.metrics?.onBytesReceived(name, utf8Size(data))
+        opt.recorder?.record(name, false, data)
         val packets = try {
             if (rawMessage) {
                 EngineIO.decodeHttpBatch(data, deserializePayload = { it })
@@ -184,6 +190,8 @@ open class PollingXHR(
         } else {
             EngineIO.encodeHttpBatch(packets, serializePayload = { SocketIO.encode(it as SocketIOPacket) })
         }
+        opt.metrics?.onBytesSent(name, utf8Size(data))
+        opt.recorder?.record(name, true, data)
 
         val method = HttpMethod.Post
         val headers = prepareRequestHeaders(method)
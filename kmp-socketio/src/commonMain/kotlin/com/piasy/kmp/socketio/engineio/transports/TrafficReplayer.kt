@@ -0,0 +1,129 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.State
+import com.piasy.kmp.socketio.engineio.TrafficRecorder
+import com.piasy.kmp.socketio.engineio.Transport
+import com.piasy.kmp.socketio.engineio.WorkThread
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.io.bytestring.ByteString
+import org.hildan.socketio.EngineIO
+import org.hildan.socketio.EngineIOPacket
+import org.hildan.socketio.SocketIO
+
+/**
+ * [TransportFactory] replaying received frames of a [TrafficRecorder] log,
+ * set it with `IO.Options.transportFactory`, e.g. to profile decoding and
+ * listener dispatch with production traffic.
+ *
+ * Every created transport replays the whole log, frames are decoded the same
+ * way as the recorded transport did, then go through the normal EngineSocket,
+ * Manager and Socket handling. Sent packets are dropped.
+ *
+ * @param speed multiplier of recorded timing, 0 to replay as fast as possible.
+ * @param onFinish called on the work thread after the last frame is handled.
+ */
+class TrafficReplayer(
+    frames: List<TrafficRecorder.Frame>,
+    private val speed: Double = 1.0,
+    private val onFinish: () -> Unit = {},
+) : TransportFactory {
+    private val frames = frames.filter { !it.outgoing }
+
+    override fun create(
+        name: String,
+        opt: Transport.Options,
+        scope: CoroutineScope,
+        rawMessage: Boolean,
+    ): Transport {
+        return ReplayTransport(opt, scope, rawMessage, frames, speed, onFinish)
+    }
+}
+
+/**
+ * Named as [WebSocket] so that no upgrade is attempted, the handshake and
+ * probe frames of a recorded upgrade are replayed as they were received.
+ */
+internal class ReplayTransport(
+    opt: Options,
+    scope: CoroutineScope,
+    rawMessage: Boolean,
+    private val frames: List<TrafficRecorder.Frame>,
+    private val speed: Double,
+    private val onFinish: () -> Unit,
+) : Transport(opt, scope, WebSocket.NAME, rawMessage) {
+    private var replay: Job? = null
+
+    @WorkThread
+    override fun pause(onPause: () -> Unit) {
+        // ws don't need to pause
+    }
+
+    @WorkThread
+    override fun doOpen() {
+        replay = scope.launch {
+            onOpen()
+            var last = frames.firstOrNull()?.timeMicros ?: 0
+            for (frame in frames) {
+                if (speed > 0) {
+                    delay(((frame.timeMicros - last) / 1000 / speed).toLong())
+                    last = frame.timeMicros
+                }
+                if (state != State.OPEN || !dispatch(frame)) {
+                    return@launch
+                }
+            }
+            onFinish()
+        }
+    }
+
+    @WorkThread
+    private fun dispatch(frame: TrafficRecorder.Frame): Boolean {
+        val data = frame.data
+        val packets = try {
+            if (data is ByteString) {
+                listOf(EngineIO.decodeWsFrame(data))
+            } else if (frame.transport == PollingXHR.NAME) {
+                if (rawMessage) {
+                    EngineIO.decodeHttpBatch(data as String, deserializePayload = { it })
+                } else {
+                    EngineIO.decodeHttpBatch(data as String, SocketIO::decode)
+                }
+            } else if (rawMessage) {
+                listOf(EngineIO.decodeWsFrame(data as String, deserializePayload = { it }))
+            } else {
+                listOf(EngineIO.decodeSocketIO(data as String))
+            }
+        } catch (e: Exception) {
+            val log = "replay decode error: ${e.message}"
+            logE(log)
+            onError(log)
+            return false
+        }
+        for (pkt in packets) {
+            if (pkt is EngineIOPacket.Close) {
+                onClose()
+                return false
+            }
+            onPacket(pkt)
+        }
+        return true
+    }
+
+    @WorkThread
+    override fun doSend(packets: List<EngineIOPacket<*>>) {
+        writable = false
+        scope.launch {
+            writable = true
+            emit(EVENT_DRAIN, packets.size)
+        }
+    }
+
+    @WorkThread
+    override fun doClose(fromOpenState: Boolean) {
+        replay?.cancel()
+        scope.launch { onClose() }
+    }
+}
@@ -31,6 +31,10 @@ open class WebSocket(
 ) : Transport(opt, scope, NAME, rawMessage) {
     private var ws: WebSocketSession? = null
 
+    init {
+        transportObserver?.onTransport(this, scope, ioScope)
+    }
+
     @WorkThread
     override fun pause(onPause: () -> Unit) {
         // ws don't need to pause
@@ -109,6 +113,8 @@ open class WebSocket(
     private fun onWsText(data: String) {
         scope.launch {
             logD { "onWsText: `$data`" }
+            opt.metrics?.onBytesReceived(name, utf8Size(data))
+            opt.recorder?.record(name, false, data)
             val packet = try {
                 if (rawMessage) {
                     EngineIO.decodeWsFrame(data, deserializePayload = { it })
@@ -130,6 +136,8 @@ open class WebSocket(
     private fun onWsBinary(data: ByteArray) {
         scope.launch {
             logD { "onWsBinary ${data.size} bytes" }
+            opt.metrics?.onBytesReceived(name, data.size.toLong())
+            opt.recorder?.record(name, false, data)
             onPacket(EngineIO.decodeWsFrame(UnsafeByteStringOperations.wrapUnsafe(data)))
         }
     }
@@ -157,6 +165,8 @@ open class WebSocket(
                         UnsafeByteStringOperations.withByteArrayUnsafe(pkt.payload) {
                             logD { "doSend binary: ${it.size} bytes" }
                             ws?.send(it)
+                            opt.metrics?.onBytesSent(name, it.size.toLong())
+                            opt.recorder?.record(name, true, it)
                         }
                     } else {
                         val data = if (rawMessage) {
@@ -167,6 +177,8 @@ open class WebSocket(
                         }
                         logD { "doSend: $pkt, `$data`" }
                         ws?.send(data)
+                        opt.metrics?.onBytesSent(name, utf8Size(data))
+                        opt.recorder?.record(name, true, data)
                     }
                 } catch (e: Exception) {
                     logE("doSend error: `${e.message}`")
@@ -10,6 +10,7 @@ import io.ktor.client.statement.*
 import io.ktor.http.*
 import io.ktor.websocket.WebSocketSession
 import kotlinx.coroutines.CoroutineScope
+import kotlin.concurrent.Volatile
 
 expect fun httpClient(trustAllCerts: Boolean = false, config: HttpClientConfig<*>.() -> Unit = {}): HttpClient
 
@@ -24,6 +25,22 @@ internal fun putHeaders(
     }
 }
 
+/**
+ * Notified of what the default transports create, for tests to find leaks,
+ * nothing is notified when [transportObserver] is null.
+ */
+internal interface TransportObserver {
+    fun onTransport(transport: Transport, scope: CoroutineScope, ioScope: CoroutineScope)
+
+    /**
+     * Called for HttpClients created by [DefaultHttpClientFactory], not external ones.
+     */
+    fun onHttpClient(client: HttpClient)
+}
+
+@Volatile
+internal var transportObserver: TransportObserver? = null
+
 interface TransportFactory {
     fun create(
         name: String,
@@ -78,7 +95,7 @@ class DefaultHttpClientFactory(
             install(WebSockets) {
                 pingIntervalMillis = 20_000
             }
-        }
+        }.also { transportObserver?.onHttpClient(it) }
     }
     // Linux curl engine doesn't work for simultaneous websocket and http request.
     // see https://youtrack.jetbrains.com/issue/KTOR-8259/
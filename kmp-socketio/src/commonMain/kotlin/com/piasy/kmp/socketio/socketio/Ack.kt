@@ -1,32 +1,41 @@
 package com.piasy.kmp.socketio.socketio
 
 import com.piasy.kmp.xlog.Logging
-import kotlinx.coroutines.CoroutineScope
-import kotlinx.coroutines.Job
-import kotlinx.coroutines.delay
-import kotlinx.coroutines.launch
+import kotlin.concurrent.atomics.AtomicBoolean
 
 interface Ack {
     fun call(vararg args: Any)
 }
 
+/**
+ * Thrown by [Socket.emitWithAck] when the ack isn't received within the timeout,
+ * or the socket is disconnected before that.
+ */
+class AckTimeoutException(message: String) : Exception(message)
+
 abstract class AckWithTimeout(val timeout: Long) : Ack {
-    private var job: Job? = null
+    private var timer: TimingWheel.Timeout? = null
+    internal var ackId: Int? = null
+
+    /**
+     * Set from the caller thread when the emit is cancelled, it may happen
+     * before the emit is drained, which then skips it.
+     */
+    internal val cancelled = AtomicBoolean(false)
 
     override fun call(vararg args: Any) {
         Logging.info(TAG, "@${hashCode()} ack success")
-        job?.cancel()
+        timer?.cancel()
         onSuccess(*args)
     }
 
-    internal fun schedule(scope: CoroutineScope, block: () -> Unit) {
-        if (job != null) {
+    internal fun schedule(wheel: TimingWheel, block: () -> Unit) {
+        if (timer != null) {
             Logging.error(TAG, "@${hashCode()} schedule error: already scheduled")
             return
         }
         Logging.info(TAG, "@${hashCode()} schedule ack timeout $timeout")
-        job = scope.launch {
-            delay(timeout)
+        timer = wheel.schedule(timeout) {
             Logging.info(TAG, "@${hashCode()} ack timeout $timeout")
             block()
             onTimeout()
@@ -35,7 +44,7 @@ abstract class AckWithTimeout(val timeout: Long) : Ack {
 
     internal fun cancel() {
         Logging.info(TAG, "@${hashCode()} cancel timeout")
-        job?.cancel()
+        timer?.cancel()
     }
 
     abstract fun onSuccess(vararg args: Any)
@@ -1,12 +1,27 @@
 package com.piasy.kmp.socketio.socketio
 
+import com.piasy.kmp.socketio.socketio.parser.placeholderNum
 import com.piasy.kmp.xlog.Logging
 import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
 import org.hildan.socketio.PayloadElement
 import org.hildan.socketio.SocketIOPacket
 
+/**
+ * Reconstruct binary packet with its attachments.
+ *
+ * Top level attachments are replaced with ByteString. If placeholders are nested
+ * in a JsonObject/JsonArray, the containers from the root to them are converted to
+ * Map/List, with the placeholders replaced with ByteString, and primitives flattened
+ * unless [rawJsonArgs], other JsonElements are kept untouched.
+ */
 class BinaryPacketReconstructor(
     private val packet: SocketIOPacket.BinaryMessage,
+    private val rawJsonArgs: Boolean = false,
     private val emitter: (isAck: Boolean, ackId: Int?, ArrayList<Any>) -> Unit,
 ) {
     private val buffers = ArrayList<ByteString>()
@@ -17,20 +32,81 @@ class BinaryPacketReconstructor(
             val data = ArrayList<Any>()
             packet.payload.forEach {
                 if (it is PayloadElement.AttachmentRef) {
-                    if (it.attachmentIndex in 0..<buffers.size) {
-                        data.add(buffers[it.attachmentIndex])
-                    } else {
-                        Logging.error(
-                            Socket.TAG,
-                            "BinaryPacketReconstructor bad index: ${it.attachmentIndex}, ${buffers.size}"
-                        )
-                        return
-                    }
+                    val buffer = attachment(it.attachmentIndex) ?: return
+                    data.add(buffer)
                 } else {
-                    data.add((it as PayloadElement.Json).jsonElement)
+                    data.add(fill((it as PayloadElement.Json).jsonElement) ?: return)
                 }
             }
             emitter(packet is SocketIOPacket.BinaryAck, packet.ackId, data)
         }
     }
+
+    private fun attachment(index: Int): ByteString? {
+        if (index in 0..<buffers.size) {
+            return buffers[index]
+        }
+        Logging.error(Socket.TAG, "BinaryPacketReconstructor bad index: $index, ${buffers.size}")
+        return null
+    }
+
+    /**
+     * @return `elem` itself if there is no placeholder in it, or null if bad index.
+     */
+    private fun fill(elem: JsonElement): Any? {
+        when (elem) {
+            is JsonObject -> {
+                val num = placeholderNum(elem)
+                if (num != null) {
+                    return attachment(num)
+                }
+                var map: LinkedHashMap<String, Any?>? = null
+                for ((key, value) in elem) {
+                    val filled = fill(value) ?: return null
+                    if (map == null && filled !== value) {
+                        // first placeholder found, convert previous entries
+                        map = LinkedHashMap()
+                        for ((k, v) in elem) {
+                            if (k == key) {
+                                break
+                            }
+                            map[k] = unwrap(v)
+                        }
+                    }
+                    map?.put(key, unwrap(filled))
+                }
+                return map ?: elem
+            }
+
+            is JsonArray -> {
+                var list: ArrayList<Any?>? = null
+                for (i in elem.indices) {
+                    val value = elem[i]
+                    val filled = fill(value) ?: return null
+                    if (list == null && filled !== value) {
+                        list = ArrayList(elem.size)
+                        for (j in 0..<i) {
+                            list.add(unwrap(elem[j]))
+                        }
+                    }
+                    list?.add(unwrap(filled))
+                }
+                return list ?: elem
+            }
+
+            else -> return elem
+        }
+    }
+
+    private fun unwrap(value: Any): Any? = when {
+        rawJsonArgs -> value
+        value is JsonNull -> null
+        value is JsonPrimitive -> value.flatPrimitive()
+        else -> value
+    }
+
+    companion object {
+        internal const val PLACEHOLDER = "_placeholder"
+        internal const val NUM = "num"
+    }
 }
@@ -5,7 +5,9 @@ import io.ktor.http.Url
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlin.concurrent.atomics.AtomicReference
 import kotlin.jvm.JvmField
+import kotlin.jvm.JvmOverloads
 import kotlin.jvm.JvmStatic
 
 object IO {
@@ -21,8 +23,34 @@ object IO {
     }
 
     private const val TAG = "IO"
-    private val scope = CoroutineScope(Dispatchers.Default.limitedParallelism(1, "siowkr"))
+    private val dispatcher = WatchedDispatcher(Dispatchers.Default.limitedParallelism(1, "siowkr"))
+    private val scope = CoroutineScope(dispatcher)
     private val managers = HashMap<String, Manager>()
+    private val watchdog = AtomicReference<Watchdog?>(null)
+
+    /**
+     * Start a watchdog of the work thread shared by all sockets, or stop it if
+     * `stallMs` is 0. A heartbeat is posted to the work thread every `intervalMs`,
+     * if it isn't processed within `stallMs`, `onStall` is called with how long
+     * it's been stalled, and the stack of the work thread (only on JVM/Android).
+     * A stall is reported within `intervalMs + stallMs` after it starts.
+     *
+     * On JS/wasm the watchdog shares the only thread, so it can't detect stalls.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun watchdog(
+        stallMs: Long,
+        intervalMs: Long = stallMs,
+        onStall: (stalledMs: Long, stack: String?) -> Unit = { stalledMs, stack ->
+            Logging.error(TAG, "work thread stalled for $stalledMs ms, stack: $stack")
+        },
+    ) {
+        val next = if (stallMs > 0) Watchdog(dispatcher, intervalMs, stallMs, onStall) else null
+        watchdog.exchange(next)?.stop()
+        // a concurrent call may have replaced and stopped it already, then it won't start
+        next?.start()
+    }
 
     @JvmStatic
     fun socket(uri: String, opt: Options, block: (Socket) -> Unit) {
@@ -0,0 +1,142 @@
+package com.piasy.kmp.socketio.socketio
+
+/**
+ * Int-keyed open-addressing hash map, with linear probing and
+ * backward-shift deletion, so keys are never boxed and no tombstone is left.
+ *
+ * This class is NOT thread-safe.
+ */
+internal class IntMap<V : Any>(initialCapacity: Int = 16) {
+    private var keys: IntArray
+    private var values: Array<Any?>
+    private var mask: Int
+
+    var size = 0
+        private set
+
+    init {
+        var n = 2
+        while (n < initialCapacity) {
+            n = n shl 1
+        }
+        keys = IntArray(n)
+        values = arrayOfNulls(n)
+        mask = n - 1
+    }
+
+    fun isEmpty() = size == 0
+
+    operator fun get(key: Int): V? {
+        val index = find(key)
+        @Suppress("UNCHECKED_CAST")
+        return if (index < 0) null else values[index] as V
+    }
+
+    operator fun contains(key: Int) = find(key) >= 0
+
+    operator fun set(key: Int, value: V) {
+        put(key, value)
+    }
+
+    /**
+     * @return the previous value of the key, or null.
+     */
+    fun put(key: Int, value: V): V? {
+        if ((size + 1) * 2 > values.size) {
+            rehash(values.size shl 1)
+        }
+        var index = slot(key)
+        while (true) {
+            val prev = values[index]
+            if (prev == null) {
+                keys[index] = key
+                values[index] = value
+                size++
+                return null
+            }
+            if (keys[index] == key) {
+                values[index] = value
+                @Suppress("UNCHECKED_CAST")
+                return prev as V
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * @return the removed value, or null if the key doesn't exist.
+     */
+    fun remove(key: Int): V? {
+        var gap = find(key)
+        if (gap < 0) {
+            return null
+        }
+        @Suppress("UNCHECKED_CAST")
+        val removed = values[gap] as V
+        size--
+
+        // shift following entries of the same probe sequence back into the gap
+        var index = (gap + 1) and mask
+        while (values[index] != null) {
+            val home = slot(keys[index])
+            if (((index - home) and mask) >= ((index - gap) and mask)) {
+                keys[gap] = keys[index]
+                values[gap] = values[index]
+                gap = index
+            }
+            index = (index + 1) and mask
+        }
+        values[gap] = null
+        return removed
+    }
+
+    fun clear() {
+        if (size == 0) {
+            return
+        }
+        values.fill(null)
+        size = 0
+    }
+
+    fun forEachValue(action: (V) -> Unit) {
+        for (value in values) {
+            if (value != null) {
+                @Suppress("UNCHECKED_CAST")
+                action(value as V)
+            }
+        }
+    }
+
+    private fun find(key: Int): Int {
+        var index = slot(key)
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index
+            }
+            index = (index + 1) and mask
+        }
+        return -1
+    }
+
+    private fun slot(key: Int): Int {
+        // fibonacci hashing, spread sequential ack ids
+        val h = key * -0x61c88647
+        return (h xor (h ushr 16)) and mask
+    }
+
+    private fun rehash(capacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        keys = IntArray(capacity)
+        values = arrayOfNulls(capacity)
+        mask = capacity - 1
+        size = 0
+        for (i in oldValues.indices) {
+            val value = oldValues[i]
+            if (value != null) {
+                @Suppress("UNCHECKED_CAST")
+                put(oldKeys[i], value as V)
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.piasy.kmp.socketio.socketio
+
+import com.piasy.kmp.socketio.socketio.parser.TextCodec
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.jsonArray
+import org.hildan.socketio.SocketIO
+
+/**
+ * Event packet with only namespace, ack id and event name decoded,
+ * the payload is decoded on first access.
+ */
+internal class LazyEvent(
+    val namespace: String,
+    val ackId: Int?,
+    val event: String,
+    private val text: String,
+    private val payloadStart: Int,
+) {
+    /**
+     * The whole payload array, including the event name.
+     *
+     * @throws IllegalArgumentException on first access, if the payload isn't a valid JSON array.
+     */
+    val payload: JsonArray by lazy(LazyThreadSafetyMode.NONE) {
+        Json.parseToJsonElement(text.substring(payloadStart)).jsonArray
+    }
+
+    override fun toString() = "LazyEvent(namespace=$namespace, ackId=$ackId, event=$event)"
+
+    companion object {
+        private const val TYPE_EVENT = '2'
+
+        /**
+         * Decode a text socket.io packet, `<type>[<nsp>,][<ack id>][<payload>]`.
+         *
+         * @return [LazyEvent] for event packets with a plain string event name,
+         * or fully decoded [org.hildan.socketio.SocketIOPacket] for others.
+         */
+        fun decode(text: String): Any {
+            if (text.isEmpty() || text[0] != TYPE_EVENT) {
+                return SocketIO.decode(text)
+            }
+            var index = 1
+            var namespace = "/"
+            if (index < text.length && text[index] == '/') {
+                val end = text.indexOf(',', index)
+                if (end < 0) {
+                    return SocketIO.decode(text)
+                }
+                namespace = text.substring(index, end)
+                index = end + 1
+            }
+            var ackId: Int? = null
+            val idStart = index
+            while (index < text.length && text[index] in '0'..'9') {
+                index++
+            }
+            if (index > idStart) {
+                ackId = TextCodec.parseInt(text, idStart, index)
+            }
+
+            // only handle `["name"...` without escape in name,
+            // leave the rare cases to the full decoder.
+            if (!text.startsWith("[\"", index)) {
+                return SocketIO.decode(text)
+            }
+            val nameEnd = text.indexOf('"', index + 2)
+            val escape = text.indexOf('\\', index + 2)
+            if (nameEnd < 0 || (escape in 0 until nameEnd)) {
+                return SocketIO.decode(text)
+            }
+            return LazyEvent(namespace, ackId, text.substring(index + 2, nameEnd), text, index)
+        }
+    }
+}
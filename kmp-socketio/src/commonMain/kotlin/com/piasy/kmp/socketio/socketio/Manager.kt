@@ -5,16 +5,22 @@ import com.piasy.kmp.socketio.engineio.EngineSocket
 import com.piasy.kmp.socketio.engineio.On
 import com.piasy.kmp.socketio.engineio.State
 import com.piasy.kmp.socketio.engineio.WorkThread
+import com.piasy.kmp.socketio.socketio.parser.JsonParser
+import com.piasy.kmp.socketio.socketio.parser.LazyJsonParser
+import com.piasy.kmp.socketio.socketio.parser.Parser
 import com.piasy.kmp.xlog.Logging
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.Json
 import org.hildan.socketio.EngineIOPacket
+import org.hildan.socketio.SocketIOPacket
 import kotlin.jvm.JvmField
 
 class Manager(
     private val uri: String,
-    private val opt: Options,
+    internal val opt: Options,
     private val scope: CoroutineScope,
 ) : Emitter() {
     open class Options : EngineSocket.Options() {
@@ -54,6 +60,45 @@ class Manager(
          */
         @JvmField
         var timeout: Long = 20000
+
+        /**
+         * Max number of emits waiting for ack of each socket, further emits with
+         * ack will wait until an ack is received, timed out or discarded.
+         * Later emits of the socket, with or without ack, wait behind them,
+         * so emits are still sent in order. Default is unlimited.
+         */
+        @JvmField
+        var maxInFlightAcks: Int = Int.MAX_VALUE
+
+        /**
+         * Json instance used by typed emit and listeners of [Socket].
+         */
+        @JvmField
+        var json: Json = Json
+
+        /**
+         * Whether to deliver event and ack args as untouched JsonElement,
+         * instead of converting primitives to String/Boolean/Int/Long/Float.
+         * Default is false.
+         */
+        @JvmField
+        var rawJsonArgs = false
+
+        /**
+         * Whether to decode event packets lazily: only namespace, ack id and event
+         * name are decoded at first, the args are decoded only if the socket
+         * has listeners of this event. Binary events are always fully decoded.
+         * Only works with [JsonParser]. Default is false.
+         */
+        @JvmField
+        var lazyDecode = false
+
+        /**
+         * Socket.IO packet parser, must be the same as the server.
+         * Default is [JsonParser].
+         */
+        @JvmField
+        var parser: Parser = JsonParser
     }
 
     internal var state = State.INIT
@@ -61,12 +106,31 @@ class Manager(
     private val subs = ArrayList<On.Handle>()
     internal var engine: EngineSocket? = null
     internal val nsps = HashMap<String, Socket>()
+    private val parser = if (opt.lazyDecode && opt.parser === JsonParser) LazyJsonParser else opt.parser
+
+    // namespace -> packet listener of the socket
+    private val packetRoutes = HashMap<String, Listener>()
+    // binary attachments are routed to the namespace of the last binary packet
+    private var binaryRoute: Listener? = null
+    private var pendingAttachments = 0
+
+    /**
+     * Shared by all sockets of this Manager to hold ack timeouts.
+     */
+    internal val ackTimer = TimingWheel(scope)
+
+    /**
+     * Whether packets could be written to transport right now.
+     */
+    internal val writable: Boolean
+        get() = state == State.OPEN && engine?.writable == true
 
     private var skipReconnect = false
     internal var reconnecting = false
         private set
 
     init {
+        slowListenerDetector = EngineSocket.slowListenerDetector(opt, TAG)
         if (opt.path.isEmpty()) {
             opt.path = "/socket.io/"
         }
@@ -97,10 +161,12 @@ class Manager(
             return
         }
 
-        val socket = EngineSocket(uri, opt, scope)
+        // socket.io packets are encoded and decoded here, with the parser
+        val socket = EngineSocket(uri, opt, scope, opt.transportFactory, rawMessage = true)
         engine = socket
         state = State.OPENING
         skipReconnect = false
+        opt.tracer?.onOpenStart(uri)
 
         socket.on(EngineSocket.EVENT_TRANSPORT, object : Listener {
             override fun call(vararg args: Any) {
@@ -110,6 +176,7 @@ class Manager(
 
         val openSub = On.on(socket, EngineSocket.EVENT_OPEN, object : Listener {
             override fun call(vararg args: Any) {
+                opt.tracer?.onOpenEnd(uri, null)
                 onOpen()
                 callback?.invoke("")
             }
@@ -117,6 +184,7 @@ class Manager(
         val errorSub = On.on(socket, EngineSocket.EVENT_ERROR, object : Listener {
             override fun call(vararg args: Any) {
                 Logging.error(TAG, "open connect_error")
+                opt.tracer?.onOpenEnd(uri, args.firstOrNull()?.toString() ?: "error")
                 cleanUp()
                 state = State.CLOSED
                 emit(EVENT_ERROR, *args)
@@ -163,6 +231,8 @@ class Manager(
         }
         cleanUp()
         state = State.OPEN
+        binaryRoute = null
+        pendingAttachments = 0
         emit(EVENT_OPEN)
 
         val socket = engine ?: return
@@ -170,7 +240,13 @@ class Manager(
             override fun call(vararg args: Any) {
                 if (args.isNotEmpty()) {
                     Logging.debug(TAG) { "on EngineSocket data ${args[0]::class}" }
-                    emit(EVENT_PACKET, args[0])
+                    val packets = try {
+                        parser.decode(args[0])
+                    } catch (e: Exception) { // InvalidSocketIOPacketException | IllegalArgumentException
+                        onError("decode packet error: ${e.message}")
+                        return
+                    }
+                    packets.forEach { dispatch(it) }
                 }
             }
         }))
@@ -194,6 +270,56 @@ class Manager(
         }))
     }
 
+    /**
+     * Route packets of namespace `nsp`, and the binary attachments following
+     * them, to `listener`.
+     */
+    @WorkThread
+    internal fun route(nsp: String, listener: Listener): On.Handle {
+        packetRoutes[nsp] = listener
+        return object : On.Handle {
+            override fun destroy() {
+                if (packetRoutes[nsp] === listener) {
+                    packetRoutes.remove(nsp)
+                }
+            }
+        }
+    }
+
+    @WorkThread
+    private fun dispatch(packet: Any) {
+        if (packet is ByteString) {
+            if (pendingAttachments == 0) {
+                Logging.error(TAG, "Receive binary buffer without binary packet")
+                return
+            }
+            pendingAttachments--
+            val route = binaryRoute
+            if (pendingAttachments == 0) {
+                binaryRoute = null
+            }
+            route?.call(packet)
+            return
+        }
+
+        val nsp = when (packet) {
+            is SocketIOPacket -> packet.namespace
+            is LazyEvent -> packet.namespace
+            else -> return
+        }
+        val route = packetRoutes[nsp]
+        if (packet is SocketIOPacket.BinaryMessage && packet.nBinaryAttachments > 0) {
+            // attachments are dropped too if there is no socket of this namespace
+            binaryRoute = route
+            pendingAttachments = packet.nBinaryAttachments
+        }
+        if (route == null) {
+            Logging.debug(TAG) { "no socket for namespace $nsp, drop $packet" }
+            return
+        }
+        route.call(packet)
+    }
+
     @WorkThread
     private fun cleanUp() {
         Logging.info(TAG, "cleanUp")
@@ -204,7 +330,7 @@ class Manager(
     }
 
     @WorkThread
-    private fun onError(error: String) {
+    internal fun onError(error: String) {
         Logging.error(TAG, "onError `$error`")
         emit(EVENT_ERROR, error)
     }
@@ -268,6 +394,7 @@ class Manager(
                     return@launch
                 }
                 Logging.info(TAG, "reconnect attempting")
+                opt.metrics?.onReconnectAttempt(opt.backoff.attempts)
                 emit(EVENT_RECONNECT_ATTEMPT, opt.backoff.attempts)
 
                 // check again for the case socket closed in above events
@@ -316,7 +443,42 @@ class Manager(
     @WorkThread
     internal fun packets(packets: List<EngineIOPacket<*>>) {
         Logging.debug(TAG) { "send packets $packets" }
-        engine?.send(packets)
+        engine?.send(encode(packets))
+    }
+
+    @WorkThread
+    internal fun packet(conflationKey: Any, packet: EngineIOPacket<*>) {
+        Logging.debug(TAG) { "send conflated packet $conflationKey, $packet" }
+        // conflated packets have no binary attachment, so they are encoded into one message
+        engine?.sendConflated(conflationKey, encode(listOf(packet)).single())
+    }
+
+    /**
+     * Encode socket.io packets, and their following binary attachments, with the parser.
+     */
+    private fun encode(packets: List<EngineIOPacket<*>>): List<EngineIOPacket<*>> {
+        val encoded = ArrayList<EngineIOPacket<*>>(packets.size)
+        var index = 0
+        while (index < packets.size) {
+            val packet = packets[index++]
+            val payload = (packet as? EngineIOPacket.Message<*>)?.payload
+            if (payload !is SocketIOPacket) {
+                encoded.add(packet)
+                continue
+            }
+            val attachments = ArrayList<ByteString>()
+            if (payload is SocketIOPacket.BinaryMessage) {
+                while (attachments.size < payload.nBinaryAttachments && index < packets.size) {
+                    val attachment = packets[index] as? EngineIOPacket.BinaryData ?: break
+                    attachments.add(attachment.payload)
+                    index++
+                }
+            }
+            parser.encode(payload, attachments).forEach {
+                encoded.add(if (it is ByteString) EngineIOPacket.BinaryData(it) else EngineIOPacket.Message(it))
+            }
+        }
+        return encoded
     }
 
     @WorkThread
@@ -343,6 +505,10 @@ class Manager(
          */
         const val EVENT_CLOSE = EngineSocket.EVENT_CLOSE
 
+        /**
+         * No longer emitted, packets are routed to the socket of their namespace.
+         */
+        @Deprecated("Manager no longer emits packets, listen on events of the Socket instead.")
         const val EVENT_PACKET = EngineSocket.EVENT_PACKET
         const val EVENT_ERROR = EngineSocket.EVENT_ERROR
 
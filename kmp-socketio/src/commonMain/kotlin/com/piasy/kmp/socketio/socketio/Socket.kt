@@ -4,12 +4,23 @@ import com.piasy.kmp.socketio.emitter.Emitter
 import com.piasy.kmp.socketio.engineio.*
 import com.piasy.kmp.xlog.Logging
 import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.channels.Channel
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
 import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.DeserializationStrategy
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.SerializationStrategy
 import kotlinx.serialization.json.*
+import kotlinx.serialization.serializer
 import org.hildan.socketio.EngineIOPacket
 import org.hildan.socketio.PayloadElement
 import org.hildan.socketio.SocketIOPacket
+import kotlin.concurrent.atomics.AtomicBoolean
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlin.jvm.JvmName
+import kotlin.time.TimeSource
 
 class Socket(
     val io: Manager,
@@ -23,16 +34,34 @@ class Socket(
     var connected = false
         private set
     private val subs = ArrayList<On.Handle>()
-    private val ack = HashMap<Int, Ack>()
+    private val ack = IntMap<Ack>()
     private var ackId = 0
+    // emits with ack waiting for credit, when ack size reaches maxInFlightAcks
+    private val ackWaiting = ArrayDeque<WaitingEmit>()
+    // emit time of acks, only when metrics is set
+    private val ackStarts = IntMap<AckStart>()
 
-    private val sendBuffer = ArrayList<EngineIOPacket<*>>()
+    private val emitQueue = Channel<PendingEmit>(Channel.UNLIMITED)
+    private val emitDrainScheduled = AtomicBoolean(false)
+
+    // packets removed before connect (e.g. ack timeout) are set to null,
+    // so indexes below stay valid until sendBuffer is cleared.
+    private val sendBuffer = ArrayList<EngineIOPacket<*>?>()
+    private val conflatedSendBuffer = HashMap<String, Int>()
+    private val bufferedAcks = IntMap<Int>()
     private val recvBuffer = ArrayList<ArrayList<Any>>()
     private var reconstructor: BinaryPacketReconstructor? = null
 
+    // args of the event being fired, before flattening, for typed listeners
+    private var firingArgs: List<Any>? = null
+
     var id = ""
         private set
 
+    init {
+        slowListenerDetector = EngineSocket.slowListenerDetector(io.opt, TAG)
+    }
+
     /**
      * Connects the socket.
      */
@@ -71,7 +100,8 @@ class Socket(
 
     /**
      * Send `message` with args.
-     * @param args only accepts String/Boolean/Number/JsonElement/ByteString
+     * @param args only accepts String/Boolean/Number/JsonElement/ByteString,
+     * and List/Map of them at any depth.
      */
     @CallerThread
     fun send(vararg args: Any): Socket {
@@ -80,62 +110,398 @@ class Socket(
 
     /**
      * emit custom event with args.
-     * @param args only accepts String/Boolean/Number/JsonElement/ByteString
+     * @param args only accepts String/Boolean/Number/JsonElement/ByteString,
+     * and List/Map of them at any depth.
      */
     @CallerThread
     override fun emit(event: String, vararg args: Any): Emitter {
+        return doEmit(event, args, false)
+    }
+
+    /**
+     * emit custom event with a value, encoded to JsonElement by `serializer`
+     * with [Manager.Options.json].
+     */
+    @CallerThread
+    fun <T> emit(event: String, serializer: SerializationStrategy<T>, value: T): Socket {
+        return doEmit(event, arrayOf(io.opt.json.encodeToJsonElement(serializer, value)), false)
+    }
+
+    /**
+     * Listens on the event, decoding the first arg by `deserializer`
+     * with [Manager.Options.json].
+     *
+     * The arg is decoded from the received JsonElement, before it's converted
+     * to String/Boolean/Number for untyped listeners. Binary args (ByteString,
+     * and List/Map containing them) can't be decoded. If the decoding fails,
+     * an [EVENT_ERROR] is emitted instead of calling `block`.
+     *
+     * @return the listener, which could be removed by `off(event, listener)`.
+     */
+    @CallerThread
+    fun <T> on(event: String, deserializer: DeserializationStrategy<T>, block: (T) -> Unit): Listener {
+        val listener = object : Listener {
+            override fun call(vararg args: Any) {
+                val raw = firingArgs
+                val arg = when {
+                    raw != null && raw.isNotEmpty() && raw[0] is JsonElement -> raw[0] as JsonElement
+                    args.isEmpty() || args[0] is Ack -> JsonNull
+                    else -> toJson(args[0])
+                }
+                val value = try {
+                    io.opt.json.decodeFromJsonElement(deserializer, arg)
+                } catch (e: SerializationException) {
+                    onError("decode event $event error: ${e.message}")
+                    return
+                }
+                block(value)
+            }
+        }
+        on(event, listener)
+        return listener
+    }
+
+    /**
+     * emit custom event with args, and suspend until the server acknowledges it.
+     *
+     * If the coroutine is cancelled, the pending ack is removed, and the packet
+     * is removed too if it's still buffered (not connected yet).
+     *
+     * @param args only accepts String/Boolean/Number/JsonElement/ByteString,
+     * and List/Map of them at any depth.
+     * @param timeout ack timeout in milliseconds.
+     * @return the ack args from the server, or empty if `event` is reserved,
+     * which is reported by [EVENT_ERROR] like [emit].
+     * @throws AckTimeoutException if the ack isn't received within `timeout`,
+     * or the socket is disconnected before that.
+     */
+    @CallerThread
+    suspend fun emitWithAck(event: String, vararg args: Any, timeout: Long): Array<Any> {
+        if (RESERVED_EVENTS.contains(event)) {
+            onError("emit reserved event: $event")
+            return emptyArray()
+        }
+        return suspendCancellableCoroutine { cont ->
+            if (!cont.isActive) {
+                // already cancelled, don't send it at all
+                return@suspendCancellableCoroutine
+            }
+            val ack = object : AckWithTimeout(timeout) {
+                override fun onSuccess(vararg args: Any) {
+                    @Suppress("UNCHECKED_CAST")
+                    cont.resume(args as Array<Any>)
+                }
+
+                override fun onTimeout() {
+                    cont.resumeWithException(AckTimeoutException("ack timeout of event $event"))
+                }
+            }
+            enqueueEmit(PendingEmit.Event(event, arrayOf(*args, ack), false, ackStart()))
+            cont.invokeOnCancellation {
+                // the drain may not have run yet (another thread could have
+                // scheduled it but not launched it), so mark the ack first:
+                // a later drain skips it, and an earlier one has assigned
+                // the ack id before discardAck runs.
+                ack.cancelled.store(true)
+                scope.launch { discardAck(ack) }
+            }
+        }
+    }
+
+    /**
+     * Get the volatile emitter of this socket, events emitted with it will be
+     * discarded if the socket isn't connected, or the transport isn't writable
+     * at the moment, instead of being buffered.
+     *
+     * e.g. `socket.volatile().emit("cursor", x, y)`
+     */
+    @CallerThread
+    @JvmName("volatileEmitter")
+    fun volatile(): Volatile = volatileEmitter
+
+    inner class Volatile internal constructor() {
+        /**
+         * emit custom event with args, discard it if it can't be sent right now.
+         * @param args only accepts String/Boolean/Number/JsonElement/ByteString,
+         * and List/Map of them at any depth.
+         */
+        @CallerThread
+        fun emit(event: String, vararg args: Any): Socket {
+            doEmit(event, args, true)
+            return this@Socket
+        }
+    }
+
+    private val volatileEmitter = Volatile()
+
+    @CallerThread
+    private fun doEmit(event: String, args: Array<out Any>, volatile: Boolean): Socket {
         if (RESERVED_EVENTS.contains(event)) {
             onError("emit reserved event: $event")
             return this
         }
-        scope.launch {
-            if (args.isNotEmpty() && args.last() is Ack) {
-                val arr = Array(args.size - 1) {
-                    args[it]
+        enqueueEmit(PendingEmit.Event(event, args, volatile, if (args.lastOrNull() is Ack) ackStart() else null))
+        return this
+    }
+
+    /**
+     * emit a batch of custom events, all packets will be sent to Manager together,
+     * so they will be written in a single flush of EngineSocket, i.e. one polling
+     * request or one burst of websocket frames.
+     *
+     * @param events list of event name and args, the last arg could be an Ack,
+     * the same as [emit].
+     */
+    @CallerThread
+    fun emitBatch(events: List<Pair<String, Array<out Any>>>): Socket {
+        for ((event, _) in events) {
+            if (RESERVED_EVENTS.contains(event)) {
+                onError("emit reserved event: $event")
+                return this
+            }
+        }
+        enqueueEmit(PendingEmit.Batch(events, ackStart()))
+        return this
+    }
+
+    /**
+     * emit custom event with args, conflating with the previous emit of the same `key`.
+     *
+     * If the previous packet of this `key` is still buffered (not connected yet,
+     * or not flushed to transport yet), it will be replaced in place, so only the
+     * latest value of each key will be sent, and the buffer size is bounded by
+     * the number of distinct keys.
+     *
+     * @param key conflation key, scoped to this socket namespace.
+     * @param args only accepts String/Boolean/Number/JsonElement, binary and ack aren't supported.
+     */
+    @CallerThread
+    fun emitConflated(key: String, event: String, vararg args: Any): Socket {
+        if (RESERVED_EVENTS.contains(event)) {
+            onError("emit reserved event: $event")
+            return this
+        }
+        if (args.hasBinary() || args.any { it is Ack }) {
+            onError("emit conflated event with binary or ack: $event")
+            return this
+        }
+        enqueueEmit(PendingEmit.Conflated(key, event, args))
+        return this
+    }
+
+    /**
+     * Emits from caller threads are put into a lock-free multi-producer queue,
+     * and only one coroutine is launched to drain the queue no matter how many
+     * emits happen before it runs.
+     *
+     * Emits from the same thread are sent in order, including those waiting
+     * for ack credit, see [Manager.Options.maxInFlightAcks].
+     */
+    @CallerThread
+    private fun enqueueEmit(pending: PendingEmit) {
+        emitQueue.trySend(pending)
+        if (emitDrainScheduled.compareAndSet(expectedValue = false, newValue = true)) {
+            scope.launch { drainEmits() }
+        }
+    }
+
+    @CallerThread
+    private fun ackStart() = if (io.opt.metrics != null) TimeSource.Monotonic.markNow() else null
+
+    @WorkThread
+    private fun drainEmits() {
+        // reset the flag before draining, so an emit racing with this drain
+        // will either be drained here, or schedule another drain.
+        emitDrainScheduled.store(false)
+        val packets = ArrayList<EngineIOPacket<*>>()
+        while (true) {
+            val pending = emitQueue.tryReceive().getOrNull() ?: break
+            when (pending) {
+                is PendingEmit.Event -> {
+                    val (args, ack) = splitAck(pending.args)
+                    if (pending.volatile && !(connected && io.writable)) {
+                        Logging.info(TAG, "discard volatile event ${pending.event}, connected $connected")
+                        if (ack is AckWithTimeout && !ack.cancelled.load()) {
+                            // the server will never receive it, so it won't be acknowledged
+                            ack.onTimeout()
+                        }
+                    } else {
+                        emitEvent(pending.event, args, ack, packets, pending.start)
+                    }
+                }
+
+                is PendingEmit.Batch -> {
+                    Logging.debug(TAG) { "emitBatch: ${pending.events.size} events" }
+                    for ((event, eventArgs) in pending.events) {
+                        val (args, ack) = splitAck(eventArgs)
+                        emitEvent(event, args, ack, packets, pending.start)
+                    }
                 }
-                emitWithAck(event, arr, args.last() as Ack)
+
+                is PendingEmit.Conflated -> {
+                    if (ackWaiting.isNotEmpty()) {
+                        waitConflated(pending)
+                        continue
+                    }
+                    // keep the order with packets drained before it
+                    if (packets.isNotEmpty()) {
+                        sendEventPackets(packets)
+                        packets.clear()
+                    }
+                    emitConflated(pending)
+                }
+            }
+        }
+        if (packets.isNotEmpty()) {
+            sendEventPackets(packets)
+        }
+    }
+
+    private fun splitAck(args: Array<out Any>): Pair<Array<out Any>, Ack?> {
+        return if (args.isNotEmpty() && args.last() is Ack) {
+            val arr = Array(args.size - 1) {
+                args[it]
+            }
+            Pair(arr, args.last() as Ack)
+        } else {
+            Pair(args, null)
+        }
+    }
+
+    @WorkThread
+    private fun emitConflated(pending: PendingEmit.Conflated) {
+        Logging.debug(TAG) { "emitConflated: ${pending.key}, ${pending.event}, ${pending.args.joinToString()}" }
+        val packet = EngineIOPacket.Message(eventPacket(pending.event, pending.args, null))
+        if (connected) {
+            io.packet(ConflationKey(nsp, pending.key), packet)
+        } else {
+            val index = conflatedSendBuffer[pending.key]
+            if (index != null) {
+                sendBuffer[index] = packet
             } else {
-                emitWithAck(event, args, null)
+                conflatedSendBuffer[pending.key] = sendBuffer.size
+                sendBuffer.add(packet)
+                io.opt.metrics?.onSendBufferDepth(sendBuffer.size)
             }
         }
-        return this
     }
 
+    /**
+     * Wait behind emits waiting for ack credit, replacing the waiting emit of
+     * the same key in place.
+     */
+    @WorkThread
+    private fun waitConflated(pending: PendingEmit.Conflated) {
+        val waiting = WaitingEmit(pending.event, pending.args, null, null, pending.key)
+        val index = ackWaiting.indexOfFirst { it.key == pending.key }
+        if (index >= 0) {
+            ackWaiting[index] = waiting
+        } else {
+            ackWaiting.addLast(waiting)
+        }
+    }
+
+    @WorkThread
+    private fun emitEvent(
+        event: String,
+        args: Array<out Any>,
+        ack: Ack?,
+        packets: MutableList<EngineIOPacket<*>>,
+        start: TimeSource.Monotonic.ValueTimeMark?,
+    ) {
+        if (ack is AckWithTimeout && ack.cancelled.load()) {
+            Logging.info(TAG, "skip cancelled emit $event")
+            return
+        }
+        if (ack is AckWithTimeout) {
+            // the timeout starts at emit, including the time waiting for credit
+            ack.schedule(io.ackTimer) { onAckTimeout(ack) }
+        }
+        // emits without ack also wait behind the waiting ones, to keep the order
+        if (ackWaiting.isNotEmpty() || (ack != null && this.ack.size >= io.opt.maxInFlightAcks)) {
+            Logging.debug(TAG) { "emit $event wait for ack credit, in flight ${this.ack.size}, waiting ${ackWaiting.size}" }
+            ackWaiting.addLast(WaitingEmit(event, args, ack, start))
+            return
+        }
+        packets.addAll(eventPackets(event, args, ack, start))
+    }
+
+    /**
+     * Send emits waiting for ack credit in order, until the first one with ack
+     * finds the window full again.
+     */
     @WorkThread
-    private fun emitWithAck(event: String, args: Array<out Any>, ack: Ack?) {
-        Logging.debug(TAG) { "emitWithAck: $event, ${args.joinToString()}, ack $ack" }
+    private fun releaseAckCredit() {
+        if (ackWaiting.isEmpty()) {
+            return
+        }
+        val packets = ArrayList<EngineIOPacket<*>>()
+        while (ackWaiting.isNotEmpty()) {
+            val waiting = ackWaiting.first()
+            if (waiting.ack != null && ack.size >= io.opt.maxInFlightAcks) {
+                break
+            }
+            ackWaiting.removeFirst()
+            if (waiting.ack is AckWithTimeout && waiting.ack.cancelled.load()) {
+                waiting.ack.cancel()
+                continue
+            }
+            if (waiting.key != null) {
+                if (packets.isNotEmpty()) {
+                    sendEventPackets(packets)
+                    packets.clear()
+                }
+                emitConflated(PendingEmit.Conflated(waiting.key, waiting.event, waiting.args))
+            } else {
+                packets.addAll(eventPackets(waiting.event, waiting.args, waiting.ack, waiting.start))
+            }
+        }
+        if (packets.isNotEmpty()) {
+            sendEventPackets(packets)
+        }
+    }
+
+    @WorkThread
+    private fun onAckTimeout(ack: AckWithTimeout) {
+        val ackId = ack.ackId
+        if (ackId == null) {
+            // still waiting for credit
+            val waiting = ackWaiting.firstOrNull { it.ack === ack } ?: return
+            ackWaiting.remove(waiting)
+            recordAckLatency(waiting.event, waiting.start, true)
+            // emits without ack behind it may go now
+            releaseAckCredit()
+            return
+        }
+        // remove the ack from the map (to prevent an actual acknowledgement)
+        this.ack.remove(ackId)
+        ackStarts.remove(ackId)?.let { recordAckLatency(it.event, it.mark, true) }
+        // remove the packet from the buffer (if applicable)
+        removeBufferedPacket(ackId)
+        releaseAckCredit()
+    }
+
+    @WorkThread
+    private fun eventPackets(
+        event: String,
+        args: Array<out Any>,
+        ack: Ack?,
+        start: TimeSource.Monotonic.ValueTimeMark?,
+    ): List<EngineIOPacket<*>> {
         val ackId = if (ack != null) this.ackId else null
         if (ack != null && ackId != null) {
             Logging.info(TAG, "emit with ack id $ackId")
             if (ack is AckWithTimeout) {
-                ack.schedule(scope) {
-                    // remove the ack from the map (to prevent an actual acknowledgement)
-                    this.ack.remove(ackId)
-                    // remove the packet from the buffer (if applicable)
-                    val iterator = sendBuffer.iterator()
-                    while (iterator.hasNext()) {
-                        val pktAckId = when (val pkt = iterator.next()) {
-                            is EngineIOPacket.Message<*> -> {
-                                when (val payload = pkt.payload) {
-                                    is SocketIOPacket.Event -> payload.ackId
-                                    is SocketIOPacket.BinaryAck -> payload.ackId
-                                    else -> null
-                                }
-                            }
-
-                            else -> null
-                        }
-                        if (pktAckId == ackId) {
-                            iterator.remove()
-                            break
-                        }
-                    }
-                }
+                ack.ackId = ackId
             }
 
             this.ack[ackId] = ack
+            if (start != null) {
+                ackStarts[ackId] = AckStart(event, start)
+            }
             this.ackId++
         }
+        io.opt.tracer?.onEmit(nsp, event, ackId)
 
         val packets = if (args.hasBinary()) {
             binaryPackets(args) { payloads, nAttachments ->
@@ -145,19 +511,67 @@ class Socket(
                 }, nAttachments)
             }
         } else {
-            listOf(EngineIOPacket.Message(SocketIOPacket.Event(nsp, ackId, buildJsonArray {
-                add(JsonPrimitive(event))
-                args.forEach { add(toJson(it)) }
-            })))
+            listOf(EngineIOPacket.Message(eventPacket(event, args, ackId)))
         }
+        return packets
+    }
 
+    @WorkThread
+    private fun sendEventPackets(packets: List<EngineIOPacket<*>>) {
         if (connected) {
             io.packets(packets)
         } else {
-            sendBuffer.addAll(packets)
+            for (pkt in packets) {
+                val ackId = ((pkt as? EngineIOPacket.Message<*>)?.payload as? SocketIOPacket.Message)?.ackId
+                if (ackId != null) {
+                    bufferedAcks[ackId] = sendBuffer.size
+                }
+                sendBuffer.add(pkt)
+            }
+            io.opt.metrics?.onSendBufferDepth(sendBuffer.size)
+        }
+    }
+
+    @WorkThread
+    private fun discardAck(ack: AckWithTimeout) {
+        val ackId = ack.ackId
+        if (ackId == null) {
+            if (ackWaiting.removeAll { it.ack === ack }) {
+                Logging.info(TAG, "discard ack waiting for credit")
+                ack.cancel()
+                releaseAckCredit()
+            }
+            return
+        }
+        if (this.ack[ackId] !== ack) {
+            // already acknowledged or timed out
+            return
+        }
+        Logging.info(TAG, "discard ack $ackId")
+        ack.cancel()
+        this.ack.remove(ackId)
+        ackStarts.remove(ackId)
+        removeBufferedPacket(ackId)
+        releaseAckCredit()
+    }
+
+    @WorkThread
+    private fun removeBufferedPacket(ackId: Int) {
+        val index = bufferedAcks.remove(ackId) ?: return
+        val payload = (sendBuffer[index] as? EngineIOPacket.Message<*>)?.payload
+        val count = 1 + ((payload as? SocketIOPacket.BinaryMessage)?.nBinaryAttachments ?: 0)
+        Logging.info(TAG, "remove buffered packet of ack $ackId, $count packets at $index")
+        for (i in index until minOf(index + count, sendBuffer.size)) {
+            sendBuffer[i] = null
         }
     }
 
+    private fun eventPacket(event: String, args: Array<out Any>, ackId: Int?) =
+        SocketIOPacket.Event(nsp, ackId, buildJsonArray {
+            add(JsonPrimitive(event))
+            args.forEach { add(toJson(it)) }
+        })
+
     @WorkThread
     private fun binaryPackets(
         args: Array<out Any>,
@@ -173,7 +587,8 @@ class Socket(
                     buffers.add(it)
                 }
 
-                else -> payloads.add(PayloadElement.Json(toJson(it)))
+                // nested ByteString are replaced with placeholders
+                else -> payloads.add(PayloadElement.Json(toJson(it, buffers)))
             }
         }
 
@@ -203,11 +618,12 @@ class Socket(
                 onOpen()
             }
         }))
-        subs.add(On.on(io, Manager.EVENT_PACKET, object : Listener {
+        subs.add(io.route(nsp, object : Listener {
             override fun call(vararg args: Any) {
                 if (args.isNotEmpty()) {
                     when (val pkt = args[0]) {
                         is SocketIOPacket -> onPacket(pkt)
+                        is LazyEvent -> onLazyEvent(pkt)
                         is ByteString -> {
                             if (reconstructor == null) {
                                 onError("Receive binary buffer while not reconstructing binary packet")
@@ -239,15 +655,12 @@ class Socket(
             Json.encodeToJsonElement(auth) as JsonObject
         }
         io.packets(listOf(EngineIOPacket.Message(SocketIOPacket.Connect(nsp, auth))))
+        io.opt.tracer?.onSocketConnectStart(nsp)
     }
 
     @WorkThread
     private fun onPacket(packet: SocketIOPacket) {
         Logging.debug(TAG) { "onPacket: nsp $nsp, $packet" }
-        if (nsp != packet.namespace) {
-            return
-        }
-
         when (packet) {
             is SocketIOPacket.Connect -> {
                 val sid = packet.payload?.get(EngineSocket.SID)
@@ -277,7 +690,7 @@ class Socket(
                 }
                 Logging.info(TAG, "start reconstructing binary packet, $packet")
                 reconstructor =
-                    BinaryPacketReconstructor(packet as SocketIOPacket.BinaryMessage) { isAck, ackId, data ->
+                    BinaryPacketReconstructor(packet as SocketIOPacket.BinaryMessage, io.opt.rawJsonArgs) { isAck, ackId, data ->
                         Logging.info(TAG, "finish reconstructing binary packet, isAck $isAck, ackId $ackId")
                         if (isAck) {
                             onAck(ackId!!, data)
@@ -290,6 +703,23 @@ class Socket(
         }
     }
 
+    @WorkThread
+    private fun onLazyEvent(packet: LazyEvent) {
+        if (connected && !hasListeners(packet.event)) {
+            // no one will receive it, nor send ack for it
+            Logging.debug(TAG) { "skip event without listener: $packet" }
+            return
+        }
+        val payload = try {
+            packet.payload
+        } catch (e: IllegalArgumentException) {
+            // the same as decode error of eager path
+            io.onError("decode packet error: ${e.message}")
+            return
+        }
+        onEvent(packet.ackId, ArrayList(payload))
+    }
+
     @WorkThread
     private fun onError(msg: String) {
         Logging.error(TAG, msg)
@@ -301,13 +731,17 @@ class Socket(
         Logging.info(TAG, "onConnect sid $id")
         connected = true
         this.id = id
+        io.opt.tracer?.onSocketConnectEnd(nsp, id)
 
         recvBuffer.forEach { fireEvent(it) }
         recvBuffer.clear()
 
         if (sendBuffer.isNotEmpty()) {
-            io.packets(sendBuffer)
+            io.packets(sendBuffer.filterNotNull())
             sendBuffer.clear()
+            conflatedSendBuffer.clear()
+            bufferedAcks.clear()
+            io.opt.metrics?.onSendBufferDepth(0)
         }
 
         super.emit(EVENT_CONNECT)
@@ -346,14 +780,15 @@ class Socket(
                 return
             }
         }
-        val args = Array(data.size) {
-            if (data[it] is JsonElement) {
-                (data[it] as JsonElement).flatPrimitive()
-            } else {
-                data[it]
-            }
+        val args = flatArgs(data)
+        // typed listeners decode the args before flattening
+        val prev = firingArgs
+        firingArgs = data
+        try {
+            super.emit(ev, *args)
+        } finally {
+            firingArgs = prev
         }
-        super.emit(ev, *args)
     }
 
     @WorkThread
@@ -386,19 +821,26 @@ class Socket(
     private fun onAck(ackId: Int, data: ArrayList<Any>) {
         val fn = this.ack.remove(ackId)
         if (fn != null) {
+            ackStarts.remove(ackId)?.let { recordAckLatency(it.event, it.mark, false) }
+            io.opt.tracer?.onAck(nsp, ackId)
+            releaseAckCredit()
             Logging.info(TAG, "calling ack $ackId with $data")
-            val args = Array(data.size) {
-                when (val elem = data[it]) {
-                    is JsonElement -> elem.flatPrimitive()
-                    else -> elem
-                }
-            }
-            fn.call(*args)
+            fn.call(*flatArgs(data))
         } else {
             Logging.info(TAG, "bad ack $ackId")
         }
     }
 
+    private fun flatArgs(data: List<Any>): Array<Any> {
+        val raw = io.opt.rawJsonArgs
+        return Array(data.size) {
+            when (val elem = data[it]) {
+                is JsonElement -> if (raw) elem else elem.flatPrimitive()
+                else -> elem
+            }
+        }
+    }
+
     @WorkThread
     private fun onManagerError(error: String) {
         Logging.error(TAG, "onManagerError: `$error`")
@@ -423,25 +865,89 @@ class Socket(
      */
     @WorkThread
     private fun clearAck() {
-        ack.values.forEach {
+        ack.forEachValue {
             if (it is AckWithTimeout) {
+                it.cancel()
                 it.onTimeout()
             }
             // note: basic Ack objects have no way to report an error,
             // so they are simply ignored here
         }
         ack.clear()
+        ackStarts.forEachValue { recordAckLatency(it.event, it.mark, true) }
+        ackStarts.clear()
+        bufferedAcks.clear()
+        // emits waiting for credit will be buffered until connected again
+        releaseAckCredit()
+    }
+
+    @WorkThread
+    private fun recordAckLatency(event: String, start: TimeSource.Monotonic.ValueTimeMark?, timedOut: Boolean) {
+        if (start != null) {
+            io.opt.metrics?.onAckLatency(event, start.elapsedNow().inWholeMicroseconds, timedOut)
+        }
     }
 
     @WorkThread
     internal fun active() = subs.isNotEmpty()
 
-    private fun toJson(primitive: Any) = when (primitive) {
-        is String -> JsonPrimitive(primitive)
-        is Boolean -> JsonPrimitive(primitive)
-        is Number -> JsonPrimitive(primitive)
-        is JsonElement -> primitive
-        else -> JsonPrimitive(primitive.toString())
+    @WorkThread
+    internal fun ackCount() = ack.size
+
+    /**
+     * @param buffers if not null, ByteString will be replaced with a placeholder,
+     * and added into it.
+     */
+    private fun toJson(value: Any?, buffers: MutableList<ByteString>? = null): JsonElement = when (value) {
+        null -> JsonNull
+        is String -> JsonPrimitive(value)
+        is Boolean -> JsonPrimitive(value)
+        is Number -> JsonPrimitive(value)
+        is JsonElement -> value
+        is ByteString -> if (buffers != null) {
+            buildJsonObject {
+                put(BinaryPacketReconstructor.PLACEHOLDER, true)
+                put(BinaryPacketReconstructor.NUM, buffers.size)
+            }.also { buffers.add(value) }
+        } else {
+            JsonPrimitive(value.toString())
+        }
+
+        is List<*> -> JsonArray(value.map { toJson(it, buffers) })
+        is Map<*, *> -> JsonObject(value.entries.associate { (k, v) -> k.toString() to toJson(v, buffers) })
+        else -> JsonPrimitive(value.toString())
+    }
+
+    /**
+     * An emit waiting for ack credit, or behind one, [key] is the conflation key
+     * of [emitConflated].
+     */
+    private class WaitingEmit(
+        val event: String,
+        val args: Array<out Any>,
+        val ack: Ack?,
+        val start: TimeSource.Monotonic.ValueTimeMark?,
+        val key: String? = null,
+    )
+
+    private class AckStart(val event: String, val mark: TimeSource.Monotonic.ValueTimeMark)
+
+    private data class ConflationKey(val nsp: String, val key: String)
+
+    private sealed class PendingEmit {
+        class Event(
+            val event: String,
+            val args: Array<out Any>,
+            val volatile: Boolean,
+            val start: TimeSource.Monotonic.ValueTimeMark?,
+        ) : PendingEmit()
+
+        class Batch(
+            val events: List<Pair<String, Array<out Any>>>,
+            val start: TimeSource.Monotonic.ValueTimeMark?,
+        ) : PendingEmit()
+
+        class Conflated(val key: String, val event: String, val args: Array<out Any>) : PendingEmit()
     }
 
     companion object {
@@ -483,48 +989,72 @@ class Socket(
     }
 }
 
-private fun JsonElement.flatPrimitive(): Any {
-    return when (this) {
-        is JsonPrimitive -> {
-            return when {
-                isString -> content
-                this is JsonNull -> "null"
-                else -> {
-                    val boolVal = jsonPrimitive.booleanOrNull
-                    if (boolVal != null) {
-                        return boolVal
-                    }
-                    val intVal = jsonPrimitive.intOrNull
-                    if (intVal != null) {
-                        return intVal
-                    }
-                    val longVal = jsonPrimitive.longOrNull
-                    if (longVal != null) {
-                        return longVal
-                    }
-                    val floatVal = jsonPrimitive.floatOrNull
-                    if (floatVal != null) {
-                        return floatVal
-                    }
-                    val doubleVal = jsonPrimitive.doubleOrNull
-                    if (doubleVal != null) {
-                        return doubleVal
-                    }
-                    Logging.error("JSON", "bad json primitive $this")
-                    return 0
-                }
-            }
+internal fun JsonElement.flatPrimitive(): Any {
+    if (this !is JsonPrimitive) {
+        return this
+    }
+    if (isString) {
+        return content
+    }
+    if (this is JsonNull) {
+        return "null"
+    }
+    val content = content
+    when (content) {
+        "true" -> return true
+        "false" -> return false
+    }
+    // classify and convert integers in a single pass,
+    // accumulating negatively so Long.MIN_VALUE fits.
+    val negative = content.startsWith('-')
+    var index = if (negative) 1 else 0
+    var value = 0L
+    var integer = index < content.length
+    while (integer && index < content.length) {
+        val digit = content[index] - '0'
+        if (digit !in 0..9 || value < (Long.MIN_VALUE + digit) / 10) {
+            integer = false
+        } else {
+            value = value * 10 - digit
+            index++
         }
-
-        else -> this
     }
-}
-
-private fun <T> Array<T>.hasBinary(): Boolean {
-    forEach {
-        if (it is ByteString) {
-            return true
+    if (integer && (negative || value != Long.MIN_VALUE)) {
+        return integerOf(if (negative) value else -value)
+    }
+    if (index < content.length && (content[index] == 'e' || content[index] == 'E')) {
+        // integers with exponent, e.g. 1e5
+        val doubleVal = content.toDoubleOrNull()
+        if (doubleVal != null && doubleVal % 1.0 == 0.0
+            && doubleVal >= Long.MIN_VALUE.toDouble() && doubleVal < Long.MAX_VALUE.toDouble()
+        ) {
+            return integerOf(doubleVal.toLong())
         }
     }
-    return false
+    // fractions and out of range integers
+    val floatVal = content.toFloatOrNull()
+    if (floatVal != null) {
+        return floatVal
+    }
+    Logging.error("JSON", "bad json primitive $this")
+    return 0
+}
+
+private fun integerOf(value: Long): Any =
+    if (value in Int.MIN_VALUE..Int.MAX_VALUE) value.toInt() else value
+
+private fun Any?.hasBinary(): Boolean = when (this) {
+    is ByteString -> true
+    is Array<*> -> any { it.hasBinary() }
+    is List<*> -> any { it.hasBinary() }
+    is Map<*, *> -> values.any { it.hasBinary() }
+    else -> false
+}
+
+/**
+ * Listens on the event, decoding the first arg into `T`, see [Socket.on].
+ */
+@CallerThread
+inline fun <reified T> Socket.on(event: String, noinline block: (T) -> Unit): Emitter.Listener {
+    return on(event, serializer<T>(), block)
 }
@@ -0,0 +1,170 @@
+package com.piasy.kmp.socketio.socketio
+
+import com.piasy.kmp.socketio.engineio.WorkThread
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlin.time.TimeSource
+
+/**
+ * Hashed timing wheel, used to hold ack timeouts of a Manager.
+ *
+ * Insert and cancel are O(1), and expired timeouts of a tick are fired in batch.
+ * Only one ticker coroutine is running, and only when there are pending timeouts,
+ * it sleeps until the next non-empty bucket instead of waking up every tick.
+ *
+ * This class is NOT thread-safe, all methods should be called on work thread.
+ */
+internal class TimingWheel(
+    private val scope: CoroutineScope,
+    private val tickMs: Long = 10,
+    wheelSize: Int = 512,
+    private val timeSource: TimeSource = TimeSource.Monotonic,
+) {
+    class Timeout internal constructor(
+        internal val deadline: Long,
+        internal val task: () -> Unit,
+    ) {
+        internal var wheel: TimingWheel? = null
+        internal var bucket = 0
+        internal var prev: Timeout? = null
+        internal var next: Timeout? = null
+        internal var cancelled = false
+
+        /**
+         * Cancel this timeout, no-op if it's already fired or cancelled.
+         */
+        @WorkThread
+        fun cancel() {
+            cancelled = true
+            wheel?.remove(this)
+        }
+    }
+
+    private val buckets: Array<Timeout?>
+    private val mask: Int
+    // ticks are counted with clock instead of delay calls,
+    // so the scheduling latency of each delay won't accumulate.
+    private val origin = timeSource.markNow()
+    private var tick = 0L
+    private var ticker: Job? = null
+    private var wakeTick = 0L
+
+    /**
+     * Number of pending timeouts.
+     */
+    var size = 0
+        private set
+
+    init {
+        var n = 1
+        while (n < wheelSize) {
+            n = n shl 1
+        }
+        buckets = arrayOfNulls(n)
+        mask = n - 1
+    }
+
+    /**
+     * Schedule `task` to run after `delayMs`, the precision is `tickMs`.
+     */
+    @WorkThread
+    fun schedule(delayMs: Long, task: () -> Unit): Timeout {
+        val now = clockTick()
+        if (size == 0) {
+            // nothing is pending, skip idle ticks
+            tick = maxOf(tick, now)
+        }
+        val ticks = maxOf(1L, (delayMs + tickMs - 1) / tickMs)
+        val timeout = Timeout(now + ticks, task)
+        val bucket = (timeout.deadline and mask.toLong()).toInt()
+        timeout.wheel = this
+        timeout.bucket = bucket
+        timeout.next = buckets[bucket]
+        buckets[bucket]?.prev = timeout
+        buckets[bucket] = timeout
+        size++
+
+        if (ticker == null || timeout.deadline < wakeTick) {
+            // the ticker sleeps past this deadline
+            ticker?.cancel()
+            ticker = scope.launch { run() }
+        }
+        return timeout
+    }
+
+    @WorkThread
+    private fun remove(timeout: Timeout) {
+        if (timeout.wheel !== this) {
+            return
+        }
+        val prev = timeout.prev
+        val next = timeout.next
+        if (prev != null) {
+            prev.next = next
+        } else {
+            buckets[timeout.bucket] = next
+        }
+        next?.prev = prev
+        timeout.prev = null
+        timeout.next = null
+        timeout.wheel = null
+        size--
+    }
+
+    private suspend fun run() {
+        while (size > 0) {
+            val now = clockTick()
+            while (tick < now && size > 0) {
+                advance()
+            }
+            if (size == 0) {
+                break
+            }
+            wakeTick = nextBucketTick()
+            delay(wakeTick * tickMs - origin.elapsedNow().inWholeMilliseconds)
+        }
+        ticker = null
+    }
+
+    private fun clockTick() = origin.elapsedNow().inWholeMilliseconds / tickMs
+
+    /**
+     * The first tick after current one with a non-empty bucket, timeouts in it
+     * may be of later rounds, then the ticker just sleeps again.
+     */
+    private fun nextBucketTick(): Long {
+        var next = tick + 1
+        while (buckets[(next and mask.toLong()).toInt()] == null) {
+            next++
+        }
+        return next
+    }
+
+    @WorkThread
+    private fun advance() {
+        tick++
+        val bucket = (tick and mask.toLong()).toInt()
+        var expired: ArrayList<Timeout>? = null
+        var timeout = buckets[bucket]
+        while (timeout != null) {
+            val next = timeout.next
+            // timeouts with later deadline are left for later rounds
+            if (timeout.deadline <= tick) {
+                remove(timeout)
+                if (expired == null) {
+                    expired = ArrayList()
+                }
+                expired.add(timeout)
+            }
+            timeout = next
+        }
+        // a task may cancel a later one of the same tick
+        expired?.forEach {
+            if (!it.cancelled) {
+                it.task()
+            }
+        }
+    }
+}
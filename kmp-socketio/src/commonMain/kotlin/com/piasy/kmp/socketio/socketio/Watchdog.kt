@@ -0,0 +1,149 @@
+package com.piasy.kmp.socketio.socketio
+
+import com.piasy.kmp.xlog.Logging
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Delay
+import kotlinx.coroutines.DisposableHandle
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.InternalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.Runnable
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlin.concurrent.atomics.AtomicInt
+import kotlin.concurrent.atomics.AtomicReference
+import kotlin.coroutines.CoroutineContext
+import kotlin.coroutines.EmptyCoroutineContext
+import kotlin.coroutines.resume
+import kotlin.time.TimeSource
+
+/**
+ * Handle of the current thread, null if the platform can't capture thread stacks.
+ */
+internal expect fun currentThreadHandle(): Any?
+
+/**
+ * Stack of the thread got from [currentThreadHandle].
+ */
+internal expect fun threadStack(thread: Any): String?
+
+/**
+ * Dispatcher wrapper recording the thread running its tasks while watched,
+ * so [Watchdog] could capture the stack of a stalled task.
+ *
+ * Delays are scheduled by `delegate` if it implements [Delay], e.g. a test
+ * dispatcher with virtual time, otherwise by the default delay of coroutines.
+ */
+@OptIn(InternalCoroutinesApi::class)
+internal class WatchedDispatcher(private val delegate: CoroutineDispatcher) : CoroutineDispatcher(), Delay {
+    private val watchers = AtomicInt(0)
+    internal val runningThread = AtomicReference<Any?>(null)
+
+    internal val watched: Boolean
+        get() = watchers.load() > 0
+
+    override fun isDispatchNeeded(context: CoroutineContext) = delegate.isDispatchNeeded(context)
+
+    override fun scheduleResumeAfterDelay(timeMillis: Long, continuation: CancellableContinuation<Unit>) {
+        val delay = delegate as? Delay
+        if (delay != null) {
+            delay.scheduleResumeAfterDelay(timeMillis, continuation)
+            return
+        }
+        val handle = super.invokeOnTimeout(timeMillis, Runnable { continuation.resume(Unit) }, continuation.context)
+        continuation.invokeOnCancellation { handle.dispose() }
+    }
+
+    override fun invokeOnTimeout(timeMillis: Long, block: Runnable, context: CoroutineContext): DisposableHandle {
+        val delay = delegate as? Delay ?: return super.invokeOnTimeout(timeMillis, block, context)
+        return delay.invokeOnTimeout(timeMillis, block, context)
+    }
+
+    internal fun watch() {
+        watchers.addAndFetch(1)
+    }
+
+    internal fun unwatch() {
+        watchers.addAndFetch(-1)
+    }
+
+    override fun dispatch(context: CoroutineContext, block: Runnable) {
+        if (!watched) {
+            delegate.dispatch(context, block)
+            return
+        }
+        delegate.dispatch(context, Runnable {
+            runningThread.store(currentThreadHandle())
+            try {
+                block.run()
+            } finally {
+                runningThread.store(null)
+            }
+        })
+    }
+}
+
+/**
+ * Stall watchdog of a work dispatcher.
+ *
+ * Every `intervalMs` a heartbeat is posted to `dispatcher`, if it isn't processed
+ * within `stallMs`, `onStall` is called once with the stack of the thread running
+ * the stalled task (only on JVM/Android), then the watchdog waits for the heartbeat
+ * before posting the next one. So a stall is reported within `intervalMs + stallMs`
+ * after it starts.
+ *
+ * The watchdog itself runs on `Dispatchers.Default`, outside of the work dispatcher.
+ * It can't be restarted after [stop], and [stop] may be called before [start] from
+ * another thread, then [start] does nothing.
+ */
+internal class Watchdog(
+    private val dispatcher: WatchedDispatcher,
+    private val intervalMs: Long,
+    private val stallMs: Long,
+    private val onStall: (stalledMs: Long, stack: String?) -> Unit,
+) {
+    private val job = Job()
+    private val state = AtomicInt(NEW)
+
+    fun start() {
+        if (!state.compareAndSet(expectedValue = NEW, newValue = STARTED)) {
+            return
+        }
+        dispatcher.watch()
+        // launches nothing if stopped concurrently
+        CoroutineScope(Dispatchers.Default + job).launch {
+            while (isActive) {
+                val processed = CompletableDeferred<Unit>()
+                val posted = TimeSource.Monotonic.markNow()
+                dispatcher.dispatch(EmptyCoroutineContext, Runnable { processed.complete(Unit) })
+
+                if (withTimeoutOrNull(stallMs) { processed.await() } == null) {
+                    val stack = dispatcher.runningThread.load()?.let { threadStack(it) }
+                    onStall(posted.elapsedNow().inWholeMilliseconds, stack)
+                    processed.await()
+                    Logging.info(TAG, "work thread recovered after ${posted.elapsedNow().inWholeMilliseconds} ms")
+                }
+                delay(maxOf(0, intervalMs - posted.elapsedNow().inWholeMilliseconds))
+            }
+        }
+    }
+
+    fun stop() {
+        if (state.exchange(STOPPED) == STARTED) {
+            dispatcher.unwatch()
+        }
+        job.cancel()
+    }
+
+    companion object {
+        private const val TAG = "Watchdog"
+        private const val NEW = 0
+        private const val STARTED = 1
+        private const val STOPPED = 2
+    }
+}
@@ -0,0 +1,54 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import com.piasy.kmp.socketio.socketio.LazyEvent
+import kotlinx.io.bytestring.ByteString
+import org.hildan.socketio.SocketIO
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * The default parser of socket.io, binary attachments are sent as separate
+ * binary messages following the text packet.
+ */
+object JsonParser : Parser {
+    override fun encode(packet: SocketIOPacket, attachments: List<ByteString>) =
+        encode(attachments, SocketIO.encode(packet))
+
+    override fun decode(data: Any): List<Any> {
+        return listOf(if (data is String) SocketIO.decode(data) else data)
+    }
+}
+
+/**
+ * [JsonParser] encoding and decoding text packets with the in-tree [TextCodec]
+ * instead of the library codec, the wire format is the same.
+ *
+ * Run `TextCodecBenchmark` on the target platform before opting in with
+ * `opt.parser = TextCodecParser`, lazy decoding isn't supported with it.
+ */
+object TextCodecParser : Parser {
+    override fun encode(packet: SocketIOPacket, attachments: List<ByteString>) =
+        encode(attachments, TextCodec.encode(packet))
+
+    override fun decode(data: Any): List<Any> {
+        return listOf(if (data is String) TextCodec.decode(data) else data)
+    }
+}
+
+private fun encode(attachments: List<ByteString>, text: String): List<Any> {
+    if (attachments.isEmpty()) {
+        return listOf(text)
+    }
+    val data = ArrayList<Any>(attachments.size + 1)
+    data.add(text)
+    data.addAll(attachments)
+    return data
+}
+
+/**
+ * [JsonParser] decoding text events as [LazyEvent].
+ */
+internal object LazyJsonParser : Parser by JsonParser {
+    override fun decode(data: Any): List<Any> {
+        return listOf(if (data is String) LazyEvent.decode(data) else data)
+    }
+}
@@ -0,0 +1,352 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import com.piasy.kmp.socketio.socketio.BinaryPacketReconstructor
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.intOrNull
+import kotlinx.serialization.json.put
+
+/**
+ * Minimal msgpack writer of JsonElement, binary attachment placeholders are
+ * written as msgpack bin.
+ */
+internal class MsgPackWriter(initialCapacity: Int = 256) {
+    private var buf = ByteArray(initialCapacity)
+    private var size = 0
+
+    fun toByteString() = ByteString(buf, 0, size)
+
+    fun writeNil() {
+        writeByte(0xc0)
+    }
+
+    fun writeBool(value: Boolean) {
+        writeByte(if (value) 0xc3 else 0xc2)
+    }
+
+    fun writeInt(value: Long) {
+        when {
+            value in 0..0x7f -> writeByte(value.toInt())
+            value in -32..-1 -> writeByte(value.toInt() and 0xff)
+            value in 0..0xff -> {
+                writeByte(0xcc)
+                writeByte(value.toInt())
+            }
+
+            value in 0..0xffff -> {
+                writeByte(0xcd)
+                writeBE(value, 2)
+            }
+
+            value in 0..0xffffffffL -> {
+                writeByte(0xce)
+                writeBE(value, 4)
+            }
+
+            value in Byte.MIN_VALUE..Byte.MAX_VALUE -> {
+                writeByte(0xd0)
+                writeByte(value.toInt() and 0xff)
+            }
+
+            value in Short.MIN_VALUE..Short.MAX_VALUE -> {
+                writeByte(0xd1)
+                writeBE(value, 2)
+            }
+
+            value in Int.MIN_VALUE..Int.MAX_VALUE -> {
+                writeByte(0xd2)
+                writeBE(value, 4)
+            }
+
+            else -> {
+                writeByte(if (value > 0) 0xcf else 0xd3)
+                writeBE(value, 8)
+            }
+        }
+    }
+
+    fun writeDouble(value: Double) {
+        writeByte(0xcb)
+        writeBE(value.toRawBits(), 8)
+    }
+
+    fun writeString(value: String) {
+        val bytes = value.encodeToByteArray()
+        val len = bytes.size
+        when {
+            len < 32 -> writeByte(0xa0 or len)
+            len <= 0xff -> {
+                writeByte(0xd9)
+                writeByte(len)
+            }
+
+            len <= 0xffff -> {
+                writeByte(0xda)
+                writeBE(len.toLong(), 2)
+            }
+
+            else -> {
+                writeByte(0xdb)
+                writeBE(len.toLong(), 4)
+            }
+        }
+        ensure(len)
+        bytes.copyInto(buf, size)
+        size += len
+    }
+
+    fun writeBin(value: ByteString) {
+        val len = value.size
+        when {
+            len <= 0xff -> {
+                writeByte(0xc4)
+                writeByte(len)
+            }
+
+            len <= 0xffff -> {
+                writeByte(0xc5)
+                writeBE(len.toLong(), 2)
+            }
+
+            else -> {
+                writeByte(0xc6)
+                writeBE(len.toLong(), 4)
+            }
+        }
+        ensure(len)
+        value.copyInto(buf, size)
+        size += len
+    }
+
+    fun writeArrayHeader(len: Int) {
+        writeContainerHeader(len, 0x90, 0xdc)
+    }
+
+    fun writeMapHeader(len: Int) {
+        writeContainerHeader(len, 0x80, 0xde)
+    }
+
+    /**
+     * @param attachments if not empty, placeholders are written as bin of the attachment.
+     */
+    fun write(elem: JsonElement, attachments: List<ByteString>) {
+        when (elem) {
+            is JsonNull -> writeNil()
+            is JsonPrimitive -> writePrimitive(elem)
+            is JsonArray -> {
+                writeArrayHeader(elem.size)
+                elem.forEach { write(it, attachments) }
+            }
+
+            is JsonObject -> {
+                val num = placeholderNum(elem)
+                if (attachments.isNotEmpty() && num != null && num in attachments.indices) {
+                    writeBin(attachments[num])
+                    return
+                }
+                writeMapHeader(elem.size)
+                for ((key, value) in elem) {
+                    writeString(key)
+                    write(value, attachments)
+                }
+            }
+        }
+    }
+
+    private fun writePrimitive(elem: JsonPrimitive) {
+        val content = elem.content
+        if (elem.isString) {
+            writeString(content)
+            return
+        }
+        when (content) {
+            "true" -> return writeBool(true)
+            "false" -> return writeBool(false)
+        }
+        val longVal = content.toLongOrNull()
+        if (longVal != null) {
+            writeInt(longVal)
+            return
+        }
+        val doubleVal = content.toDoubleOrNull()
+        if (doubleVal != null) {
+            writeDouble(doubleVal)
+        } else {
+            writeString(content)
+        }
+    }
+
+    private fun writeContainerHeader(len: Int, fix: Int, type16: Int) {
+        when {
+            len < 16 -> writeByte(fix or len)
+            len <= 0xffff -> {
+                writeByte(type16)
+                writeBE(len.toLong(), 2)
+            }
+
+            else -> {
+                writeByte(type16 + 1)
+                writeBE(len.toLong(), 4)
+            }
+        }
+    }
+
+    private fun writeByte(value: Int) {
+        ensure(1)
+        buf[size++] = value.toByte()
+    }
+
+    private fun writeBE(value: Long, bytes: Int) {
+        ensure(bytes)
+        for (i in bytes - 1 downTo 0) {
+            buf[size++] = (value ushr (i * 8)).toByte()
+        }
+    }
+
+    private fun ensure(extra: Int) {
+        if (size + extra > buf.size) {
+            buf = buf.copyOf(maxOf(buf.size * 2, size + extra))
+        }
+    }
+}
+
+/**
+ * Minimal msgpack reader to JsonElement, bin values are replaced with
+ * placeholders, and added into attachments.
+ */
+internal class MsgPackReader(private val buf: ByteArray) {
+    private var pos = 0
+
+    fun read(attachments: MutableList<ByteString>): JsonElement {
+        val type = readByte()
+        return when {
+            type <= 0x7f -> JsonPrimitive(type)
+            type in 0x80..0x8f -> readMap(type and 0x0f, attachments)
+            type in 0x90..0x9f -> readArray(type and 0x0f, attachments)
+            type in 0xa0..0xbf -> JsonPrimitive(readString(type and 0x1f))
+            type >= 0xe0 -> JsonPrimitive(type - 0x100)
+            else -> when (type) {
+                0xc0 -> JsonNull
+                0xc2 -> JsonPrimitive(false)
+                0xc3 -> JsonPrimitive(true)
+                0xc4 -> readBin(readBE(1).toInt(), attachments)
+                0xc5 -> readBin(readBE(2).toInt(), attachments)
+                0xc6 -> readBin(readBE(4).toInt(), attachments)
+                0xc7 -> skipExt(readBE(1).toInt())
+                0xc8 -> skipExt(readBE(2).toInt())
+                0xc9 -> skipExt(readBE(4).toInt())
+                0xca -> JsonPrimitive(Float.fromBits(readBE(4).toInt()))
+                0xcb -> JsonPrimitive(Double.fromBits(readBE(8)))
+                0xcc -> JsonPrimitive(readBE(1))
+                0xcd -> JsonPrimitive(readBE(2))
+                0xce -> JsonPrimitive(readBE(4))
+                0xcf -> {
+                    val value = readBE(8)
+                    // uint64 above Long.MAX_VALUE
+                    if (value < 0) JsonPrimitive(value.toULong().toDouble()) else JsonPrimitive(value)
+                }
+
+                0xd0 -> JsonPrimitive(readBE(1).toByte())
+                0xd1 -> JsonPrimitive(readBE(2).toShort())
+                0xd2 -> JsonPrimitive(readBE(4).toInt())
+                0xd3 -> JsonPrimitive(readBE(8))
+                // fixext 1/2/4/8/16, e.g. undefined of notepack.io
+                0xd4 -> skipExt(1)
+                0xd5 -> skipExt(2)
+                0xd6 -> skipExt(4)
+                0xd7 -> skipExt(8)
+                0xd8 -> skipExt(16)
+                0xd9 -> JsonPrimitive(readString(readBE(1).toInt()))
+                0xda -> JsonPrimitive(readString(readBE(2).toInt()))
+                0xdb -> JsonPrimitive(readString(readBE(4).toInt()))
+                0xdc -> readArray(readBE(2).toInt(), attachments)
+                0xdd -> readArray(readBE(4).toInt(), attachments)
+                0xde -> readMap(readBE(2).toInt(), attachments)
+                0xdf -> readMap(readBE(4).toInt(), attachments)
+                else -> throw IllegalArgumentException("bad msgpack type $type at ${pos - 1}")
+            }
+        }
+    }
+
+    private fun readArray(len: Int, attachments: MutableList<ByteString>): JsonArray {
+        // each element takes at least 1 byte, don't preallocate for a forged length
+        check(len)
+        val list = ArrayList<JsonElement>(len)
+        repeat(len) {
+            list.add(read(attachments))
+        }
+        return JsonArray(list)
+    }
+
+    private fun readMap(len: Int, attachments: MutableList<ByteString>): JsonObject {
+        // each entry takes at least 2 bytes
+        check(len)
+        check(len * 2)
+        val map = LinkedHashMap<String, JsonElement>(len)
+        repeat(len) {
+            val key = read(attachments)
+            map[if (key is JsonPrimitive) key.content else key.toString()] = read(attachments)
+        }
+        return JsonObject(map)
+    }
+
+    private fun readString(len: Int): String {
+        check(len)
+        val str = buf.decodeToString(pos, pos + len)
+        pos += len
+        return str
+    }
+
+    private fun readBin(len: Int, attachments: MutableList<ByteString>): JsonElement {
+        check(len)
+        val bin = ByteString(buf, pos, pos + len)
+        pos += len
+        return buildJsonObject {
+            put(BinaryPacketReconstructor.PLACEHOLDER, true)
+            put(BinaryPacketReconstructor.NUM, attachments.size)
+        }.also { attachments.add(bin) }
+    }
+
+    private fun skipExt(len: Int): JsonElement {
+        // ext type
+        check(len + 1)
+        pos += len + 1
+        return JsonNull
+    }
+
+    private fun readByte(): Int {
+        check(1)
+        return buf[pos++].toInt() and 0xff
+    }
+
+    private fun readBE(bytes: Int): Long {
+        check(bytes)
+        var value = 0L
+        repeat(bytes) {
+            value = (value shl 8) or (buf[pos++].toLong() and 0xff)
+        }
+        return value
+    }
+
+    private fun check(len: Int) {
+        if (len < 0 || len > buf.size - pos) {
+            throw IllegalArgumentException("msgpack data truncated, need $len bytes at $pos, size ${buf.size}")
+        }
+    }
+}
+
+internal fun placeholderNum(obj: JsonObject): Int? {
+    val placeholder = obj[BinaryPacketReconstructor.PLACEHOLDER]
+    val num = obj[BinaryPacketReconstructor.NUM]
+    if (obj.size != 2 || placeholder !is JsonPrimitive || placeholder.content != "true" || placeholder.isString
+        || num !is JsonPrimitive
+    ) {
+        return null
+    }
+    return num.intOrNull
+}
@@ -0,0 +1,121 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.intOrNull
+import org.hildan.socketio.PayloadElement
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * Parser compatible with [socket.io-msgpack-parser](https://github.com/socketio/socket.io-msgpack-parser),
+ * each packet is encoded as one msgpack map `{type, data, nsp, id}` in a binary message,
+ * and binary values are encoded inline as msgpack bin.
+ */
+object MsgPackParser : Parser {
+    private const val CONNECT = 0
+    private const val DISCONNECT = 1
+    private const val EVENT = 2
+    private const val ACK = 3
+    private const val CONNECT_ERROR = 4
+    private const val BINARY_EVENT = 5
+    private const val BINARY_ACK = 6
+
+    override fun encode(packet: SocketIOPacket, attachments: List<ByteString>): List<Any> {
+        val (type, data) = when (packet) {
+            is SocketIOPacket.Connect -> Pair(CONNECT, packet.payload)
+            is SocketIOPacket.Disconnect -> Pair(DISCONNECT, null)
+            is SocketIOPacket.ConnectError -> Pair(CONNECT_ERROR, packet.errorData)
+            is SocketIOPacket.Event -> Pair(EVENT, packet.payload)
+            is SocketIOPacket.Ack -> Pair(ACK, packet.payload)
+            // binary values are inline, so binary packets are sent as plain ones
+            is SocketIOPacket.BinaryEvent -> Pair(EVENT, null)
+            is SocketIOPacket.BinaryAck -> Pair(ACK, null)
+        }
+        val ackId = (packet as? SocketIOPacket.Message)?.ackId
+
+        val writer = MsgPackWriter()
+        // undefined fields are omitted, as notepack.io does
+        writer.writeMapHeader(2 + (if (data != null || packet is SocketIOPacket.BinaryMessage) 1 else 0)
+                + (if (ackId != null) 1 else 0))
+        writer.writeString("type")
+        writer.writeInt(type.toLong())
+        if (packet is SocketIOPacket.BinaryMessage) {
+            writer.writeString("data")
+            writer.writeArrayHeader(packet.payload.size)
+            for (elem in packet.payload) {
+                when (elem) {
+                    is PayloadElement.AttachmentRef -> writer.writeBin(attachments[elem.attachmentIndex])
+                    is PayloadElement.Json -> writer.write(elem.jsonElement, attachments)
+                }
+            }
+        } else if (data != null) {
+            writer.writeString("data")
+            writer.write(data, attachments)
+        }
+        writer.writeString("nsp")
+        writer.writeString(packet.namespace)
+        if (ackId != null) {
+            writer.writeString("id")
+            writer.writeInt(ackId.toLong())
+        }
+        return listOf(writer.toByteString())
+    }
+
+    override fun decode(data: Any): List<Any> {
+        if (data !is ByteString) {
+            throw IllegalArgumentException("msgpack parser receive text message")
+        }
+        val attachments = ArrayList<ByteString>()
+        val obj = MsgPackReader(data.toByteArray()).read(attachments)
+        if (obj !is JsonObject) {
+            throw IllegalArgumentException("msgpack packet isn't a map")
+        }
+        val type = (obj["type"] as? JsonPrimitive)?.intOrNull
+        val nsp = (obj["nsp"] as? JsonPrimitive)?.content
+            ?: throw IllegalArgumentException("msgpack packet without nsp")
+        val payload = obj["data"]
+        val ackId = (obj["id"] as? JsonPrimitive)?.intOrNull
+
+        val packet = when (type) {
+            CONNECT -> SocketIOPacket.Connect(nsp, payload as? JsonObject)
+            DISCONNECT -> SocketIOPacket.Disconnect(nsp)
+            CONNECT_ERROR -> SocketIOPacket.ConnectError(nsp, if (payload is JsonNull) null else payload)
+            EVENT, BINARY_EVENT -> {
+                val array = payloadArray(payload)
+                if (attachments.isEmpty()) {
+                    SocketIOPacket.Event(nsp, ackId, array)
+                } else {
+                    SocketIOPacket.BinaryEvent(nsp, ackId, array.map { PayloadElement.Json(it) }, attachments.size)
+                }
+            }
+
+            ACK, BINARY_ACK -> {
+                val array = payloadArray(payload)
+                ackId ?: throw IllegalArgumentException("msgpack ack packet without id")
+                if (attachments.isEmpty()) {
+                    SocketIOPacket.Ack(nsp, ackId, array)
+                } else {
+                    SocketIOPacket.BinaryAck(nsp, ackId, array.map { PayloadElement.Json(it) }, attachments.size)
+                }
+            }
+
+            else -> throw IllegalArgumentException("bad msgpack packet type $type")
+        }
+        if (attachments.isEmpty()) {
+            return listOf(packet)
+        }
+        // bin values are replaced with placeholders, and delivered as attachments
+        val packets = ArrayList<Any>(attachments.size + 1)
+        packets.add(packet)
+        packets.addAll(attachments)
+        return packets
+    }
+
+    private fun payloadArray(payload: JsonElement?): JsonArray {
+        return payload as? JsonArray ?: throw IllegalArgumentException("bad msgpack packet data $payload")
+    }
+}
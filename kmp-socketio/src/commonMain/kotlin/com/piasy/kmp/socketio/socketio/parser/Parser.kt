@@ -0,0 +1,34 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import kotlinx.io.bytestring.ByteString
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * Socket.IO packet codec, selected by [com.piasy.kmp.socketio.socketio.Manager.Options.parser].
+ *
+ * Both sides of a connection must use the same parser, e.g. [JsonParser] for the
+ * default parser of socket.io, [MsgPackParser] for socket.io-msgpack-parser.
+ *
+ * Methods are called on work thread, implementations should be stateless.
+ */
+interface Parser {
+    /**
+     * Encode a packet into engine.io message payloads.
+     *
+     * @param attachments binary attachments of a [SocketIOPacket.BinaryMessage],
+     * referred by [org.hildan.socketio.PayloadElement.AttachmentRef] and placeholders
+     * nested in its payload.
+     * @return String for text message, or ByteString for binary message.
+     */
+    fun encode(packet: SocketIOPacket, attachments: List<ByteString>): List<Any>
+
+    /**
+     * Decode an engine.io message payload.
+     *
+     * @param data String for text message, or ByteString for binary message.
+     * @return decoded [SocketIOPacket]s, a [SocketIOPacket.BinaryMessage] must be
+     * followed by its attachments as ByteString, in this list or the following
+     * messages.
+     */
+    fun decode(data: Any): List<Any>
+}
@@ -0,0 +1,444 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import com.piasy.kmp.socketio.socketio.BinaryPacketReconstructor
+import kotlinx.serialization.ExperimentalSerializationApi
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.JsonUnquotedLiteral
+import org.hildan.socketio.PayloadElement
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * Socket.IO text packet codec, `<type>[<attachments>-][<nsp>,][<ack id>][<payload>]`.
+ *
+ * Encoding writes the header and payload json into one StringBuilder per packet,
+ * decoding scans the frame once, header and payload json, without copying the
+ * payload out of the frame. Payloads are still [JsonArray], because [SocketIOPacket]
+ * carries them.
+ */
+internal object TextCodec {
+    private const val DEFAULT_NSP = "/"
+
+    fun encode(packet: SocketIOPacket): String {
+        val sb = StringBuilder(64)
+        when (packet) {
+            is SocketIOPacket.Connect -> {
+                writeHeader(sb, '0', packet.namespace, null, null)
+                packet.payload?.let { writeJson(sb, it) }
+            }
+
+            is SocketIOPacket.Disconnect -> writeHeader(sb, '1', packet.namespace, null, null)
+            is SocketIOPacket.Event -> {
+                writeHeader(sb, '2', packet.namespace, null, packet.ackId)
+                writeJson(sb, packet.payload)
+            }
+
+            is SocketIOPacket.Ack -> {
+                writeHeader(sb, '3', packet.namespace, null, packet.ackId)
+                writeJson(sb, packet.payload)
+            }
+
+            is SocketIOPacket.ConnectError -> {
+                writeHeader(sb, '4', packet.namespace, null, null)
+                packet.errorData?.let { writeJson(sb, it) }
+            }
+
+            is SocketIOPacket.BinaryEvent -> {
+                writeHeader(sb, '5', packet.namespace, packet.nBinaryAttachments, packet.ackId)
+                writePayload(sb, packet.payload)
+            }
+
+            is SocketIOPacket.BinaryAck -> {
+                writeHeader(sb, '6', packet.namespace, packet.nBinaryAttachments, packet.ackId)
+                writePayload(sb, packet.payload)
+            }
+        }
+        return sb.toString()
+    }
+
+    fun decode(text: String): SocketIOPacket {
+        if (text.isEmpty()) {
+            throw IllegalArgumentException("empty socket.io packet")
+        }
+        val type = text[0]
+        var index = 1
+
+        var attachments = 0
+        if (type == '5' || type == '6') {
+            val end = text.indexOf('-', index)
+            if (end < 0) {
+                throw IllegalArgumentException("no attachments count in binary packet: $text")
+            }
+            attachments = parseInt(text, index, end)
+            index = end + 1
+        }
+
+        var namespace = DEFAULT_NSP
+        if (index < text.length && text[index] == '/') {
+            var end = text.indexOf(',', index)
+            if (end < 0) {
+                end = text.length
+            }
+            namespace = text.substring(index, end)
+            index = minOf(end + 1, text.length)
+        }
+
+        var ackId: Int? = null
+        val idStart = index
+        while (index < text.length && text[index] in '0'..'9') {
+            index++
+        }
+        if (index > idStart) {
+            ackId = parseInt(text, idStart, index)
+        }
+
+        val payload = if (index < text.length) parsePayload(text, index) else null
+        return when (type) {
+            '0' -> SocketIOPacket.Connect(namespace, payload as? JsonObject)
+            '1' -> SocketIOPacket.Disconnect(namespace)
+            '2' -> SocketIOPacket.Event(namespace, ackId, payloadArray(payload, text))
+            '3' -> SocketIOPacket.Ack(namespace, ackId ?: noAckId(text), payloadArray(payload, text))
+            '4' -> SocketIOPacket.ConnectError(namespace, payload)
+            '5' -> SocketIOPacket.BinaryEvent(namespace, ackId, binaryPayload(payload, text), attachments)
+            '6' -> SocketIOPacket.BinaryAck(
+                namespace, ackId ?: noAckId(text), binaryPayload(payload, text), attachments
+            )
+
+            else -> throw IllegalArgumentException("bad socket.io packet type: $text")
+        }
+    }
+
+    private fun writeHeader(sb: StringBuilder, type: Char, namespace: String, attachments: Int?, ackId: Int?) {
+        sb.append(type)
+        if (attachments != null) {
+            sb.append(attachments).append('-')
+        }
+        if (namespace != DEFAULT_NSP) {
+            sb.append(namespace).append(',')
+        }
+        if (ackId != null) {
+            sb.append(ackId)
+        }
+    }
+
+    private fun writePayload(sb: StringBuilder, payload: List<PayloadElement>) {
+        sb.append('[')
+        payload.forEachIndexed { index, elem ->
+            if (index > 0) {
+                sb.append(',')
+            }
+            when (elem) {
+                is PayloadElement.Json -> writeJson(sb, elem.jsonElement)
+                is PayloadElement.AttachmentRef -> sb.append("{\"")
+                    .append(BinaryPacketReconstructor.PLACEHOLDER)
+                    .append("\":true,\"")
+                    .append(BinaryPacketReconstructor.NUM)
+                    .append("\":")
+                    .append(elem.attachmentIndex)
+                    .append('}')
+            }
+        }
+        sb.append(']')
+    }
+
+    private fun writeJson(sb: StringBuilder, elem: JsonElement) {
+        when (elem) {
+            is JsonNull -> sb.append("null")
+            is JsonPrimitive -> if (elem.isString) writeString(sb, elem.content) else sb.append(elem.content)
+            is JsonArray -> {
+                sb.append('[')
+                elem.forEachIndexed { index, value ->
+                    if (index > 0) {
+                        sb.append(',')
+                    }
+                    writeJson(sb, value)
+                }
+                sb.append(']')
+            }
+
+            is JsonObject -> {
+                sb.append('{')
+                var first = true
+                for ((key, value) in elem) {
+                    if (!first) {
+                        sb.append(',')
+                    }
+                    first = false
+                    writeString(sb, key)
+                    sb.append(':')
+                    writeJson(sb, value)
+                }
+                sb.append('}')
+            }
+        }
+    }
+
+    private fun writeString(sb: StringBuilder, value: String) {
+        sb.append('"')
+        // append unescaped runs in bulk
+        var start = 0
+        for (i in value.indices) {
+            val c = value[i]
+            if (c != '"' && c != '\\' && c >= ' ') {
+                continue
+            }
+            sb.append(value, start, i)
+            when (c) {
+                '"' -> sb.append("\\\"")
+                '\\' -> sb.append("\\\\")
+                '\n' -> sb.append("\\n")
+                '\r' -> sb.append("\\r")
+                '\t' -> sb.append("\\t")
+                '\b' -> sb.append("\\b")
+                '\u000C' -> sb.append("\\f")
+                else -> sb.append("\\u00").append(HEX[c.code shr 4]).append(HEX[c.code and 0xf])
+            }
+            start = i + 1
+        }
+        sb.append(value, start, value.length)
+        sb.append('"')
+    }
+
+    /**
+     * Parse the payload json from `start` to the end of `text`.
+     *
+     * @throws IllegalArgumentException if it isn't valid json.
+     */
+    internal fun parsePayload(text: String, start: Int): JsonElement {
+        val reader = JsonReader(text, start)
+        val value = reader.readValue(0)
+        reader.expectEnd()
+        return value
+    }
+
+    internal fun parseInt(text: String, start: Int, end: Int): Int {
+        if (start == end) {
+            throw IllegalArgumentException("bad number in socket.io packet: $text")
+        }
+        var value = 0
+        for (i in start..<end) {
+            val digit = text[i] - '0'
+            if (digit !in 0..9 || value > (Int.MAX_VALUE - digit) / 10) {
+                throw IllegalArgumentException("bad number in socket.io packet: $text")
+            }
+            value = value * 10 + digit
+        }
+        return value
+    }
+
+    private fun payloadArray(payload: JsonElement?, text: String): JsonArray {
+        return payload as? JsonArray ?: throw IllegalArgumentException("bad socket.io packet payload: $text")
+    }
+
+    private fun binaryPayload(payload: JsonElement?, text: String): List<PayloadElement> {
+        return payloadArray(payload, text).map {
+            val num = if (it is JsonObject) placeholderNum(it) else null
+            if (num != null) PayloadElement.AttachmentRef(num) else PayloadElement.Json(it)
+        }
+    }
+
+    private fun noAckId(text: String): Nothing {
+        throw IllegalArgumentException("no ack id in ack packet: $text")
+    }
+
+    private const val HEX = "0123456789abcdef"
+}
+
+/**
+ * Json reader over a range of the frame. Strings without escape are cut from the
+ * frame directly, escaped ones are unescaped into one StringBuilder reused by
+ * the whole payload, numbers keep their original text as kotlinx.serialization
+ * does.
+ */
+private class JsonReader(private val text: String, private var pos: Int) {
+    private var unescaped: StringBuilder? = null
+
+    fun readValue(depth: Int): JsonElement {
+        if (depth > MAX_DEPTH) {
+            fail("json nested too deep")
+        }
+        skipWhitespace()
+        if (pos >= text.length) {
+            fail("unexpected end of json")
+        }
+        return when (val c = text[pos]) {
+            '[' -> readArray(depth)
+            '{' -> readObject(depth)
+            '"' -> JsonPrimitive(readString())
+            't' -> readLiteral("true", JsonPrimitive(true))
+            'f' -> readLiteral("false", JsonPrimitive(false))
+            'n' -> readLiteral("null", JsonNull)
+            else -> if (c == '-' || c in '0'..'9') readNumber() else fail("unexpected '$c'")
+        }
+    }
+
+    fun expectEnd() {
+        skipWhitespace()
+        if (pos < text.length) {
+            fail("unexpected '${text[pos]}' after json")
+        }
+    }
+
+    private fun readArray(depth: Int): JsonArray {
+        pos++
+        val list = ArrayList<JsonElement>()
+        skipWhitespace()
+        if (consume(']')) {
+            return JsonArray(list)
+        }
+        do {
+            list.add(readValue(depth + 1))
+            skipWhitespace()
+        } while (consume(','))
+        expect(']')
+        return JsonArray(list)
+    }
+
+    private fun readObject(depth: Int): JsonObject {
+        pos++
+        val map = LinkedHashMap<String, JsonElement>()
+        skipWhitespace()
+        if (consume('}')) {
+            return JsonObject(map)
+        }
+        do {
+            skipWhitespace()
+            if (pos >= text.length || text[pos] != '"') {
+                fail("expect object key")
+            }
+            val key = readString()
+            skipWhitespace()
+            expect(':')
+            map[key] = readValue(depth + 1)
+            skipWhitespace()
+        } while (consume(','))
+        expect('}')
+        return JsonObject(map)
+    }
+
+    private fun readString(): String {
+        val start = ++pos
+        while (pos < text.length) {
+            when (text[pos]) {
+                '"' -> return text.substring(start, pos++)
+                '\\' -> return readEscapedString(start)
+                else -> pos++
+            }
+        }
+        fail("unterminated string")
+    }
+
+    private fun readEscapedString(start: Int): String {
+        val sb = unescaped?.also { it.clear() } ?: StringBuilder().also { unescaped = it }
+        sb.append(text, start, pos)
+        while (pos < text.length) {
+            val c = text[pos++]
+            if (c == '"') {
+                return sb.toString()
+            }
+            if (c != '\\') {
+                sb.append(c)
+                continue
+            }
+            if (pos >= text.length) {
+                break
+            }
+            when (val e = text[pos++]) {
+                '"', '\\', '/' -> sb.append(e)
+                'b' -> sb.append('\b')
+                'f' -> sb.append('\u000C')
+                'n' -> sb.append('\n')
+                'r' -> sb.append('\r')
+                't' -> sb.append('\t')
+                'u' -> sb.append(readHex4())
+                else -> fail("bad escape '\\$e'")
+            }
+        }
+        fail("unterminated string")
+    }
+
+    private fun readHex4(): Char {
+        if (pos + 4 > text.length) {
+            fail("bad unicode escape")
+        }
+        var code = 0
+        repeat(4) {
+            val digit = text[pos++].digitToIntOrNull(16) ?: fail("bad unicode escape")
+            code = (code shl 4) or digit
+        }
+        return code.toChar()
+    }
+
+    @OptIn(ExperimentalSerializationApi::class)
+    private fun readNumber(): JsonPrimitive {
+        val start = pos
+        consume('-')
+        if (!consume('0')) {
+            digits()
+        }
+        if (consume('.')) {
+            digits()
+        }
+        if (consume('e') || consume('E')) {
+            if (!consume('+')) {
+                consume('-')
+            }
+            digits()
+        }
+        return JsonUnquotedLiteral(text.substring(start, pos))
+    }
+
+    private fun digits() {
+        val start = pos
+        while (pos < text.length && text[pos] in '0'..'9') {
+            pos++
+        }
+        if (pos == start) {
+            fail("bad number")
+        }
+    }
+
+    private fun readLiteral(literal: String, value: JsonElement): JsonElement {
+        if (!text.startsWith(literal, pos)) {
+            fail("unexpected '${text[pos]}'")
+        }
+        pos += literal.length
+        return value
+    }
+
+    private fun skipWhitespace() {
+        while (pos < text.length) {
+            val c = text[pos]
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                return
+            }
+            pos++
+        }
+    }
+
+    private fun consume(c: Char): Boolean {
+        if (pos < text.length && text[pos] == c) {
+            pos++
+            return true
+        }
+        return false
+    }
+
+    private fun expect(c: Char) {
+        if (!consume(c)) {
+            fail(if (pos < text.length) "expect '$c' but got '${text[pos]}'" else "expect '$c' at the end")
+        }
+    }
+
+    private fun fail(msg: String): Nothing {
+        throw IllegalArgumentException("bad socket.io packet payload at $pos, $msg")
+    }
+
+    companion object {
+        // deeper payloads are rejected, rather than overflowing the stack
+        private const val MAX_DEPTH = 512
+    }
+}
@@ -14,6 +14,9 @@ import kotlinx.coroutines.withContext
 import kotlinx.io.bytestring.ByteString
 import kotlinx.io.bytestring.unsafe.UnsafeByteStringApi
 import kotlinx.io.bytestring.unsafe.UnsafeByteStringOperations
+import kotlinx.serialization.builtins.ListSerializer
+import kotlinx.serialization.builtins.MapSerializer
+import kotlinx.serialization.builtins.serializer
 import kotlin.test.*
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.seconds
@@ -101,6 +104,48 @@ abstract class ConnectionTest {
         assertFalse(isConnectedWhenDisconnectedEvent.await())
     }
 
+    @Test
+    fun emitWithAck() = doTest {
+        val socket = CompletableDeferred<Socket>()
+        val opt = IO.Options()
+        opt.transports = listOf(WebSocket.NAME)
+        client(opt = opt) {
+            socket.complete(it)
+            it.open()
+        }
+
+        val args = socket.await().emitWithAck("ack", 1, "2", timeout = 5000)
+        assertEquals(listOf<Any>(1, "2"), args.toList())
+
+        assertFailsWith<AckTimeoutException> {
+            socket.await().emitWithAck("unknown", timeout = 100)
+        }
+        socket.await().close()
+    }
+
+    @Test
+    fun emitAndReceiveTyped() = doTest {
+        val serializer = MapSerializer(String.serializer(), ListSerializer(Int.serializer()))
+        val value = mapOf("a" to listOf(1, 2), "b" to listOf(3))
+        val echoBack = CompletableDeferred<Map<String, List<Int>>>()
+
+        val opt = IO.Options()
+        opt.transports = listOf(WebSocket.NAME)
+        client(opt = opt) { socket ->
+            socket.on(Socket.EVENT_CONNECT) {
+                socket.emit("echo", serializer, value)
+            }
+            socket.on<Map<String, List<Int>>>("echoBack") {
+                echoBack.complete(it)
+                socket.close()
+            }
+
+            socket.open()
+        }
+
+        assertEquals(value, echoBack.await())
+    }
+
     @Test
     open fun shouldConnectUntrusted() = doTest {
         val trustAllCertsHttpClientFactory = DefaultHttpClientFactory(
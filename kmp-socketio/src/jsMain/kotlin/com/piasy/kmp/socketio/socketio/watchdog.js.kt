@@ -0,0 +1,6 @@
+package com.piasy.kmp.socketio.socketio
+
+// stack of another thread can't be captured on this platform
+internal actual fun currentThreadHandle(): Any? = null
+
+internal actual fun threadStack(thread: Any): String? = null
@@ -0,0 +1,6 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+
+internal actual val recorderDispatcher: CoroutineDispatcher = Dispatchers.IO
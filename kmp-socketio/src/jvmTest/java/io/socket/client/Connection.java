@@ -46,8 +46,11 @@ public abstract class Connection {
                 try {
                     line = reader.readLine();
                     latch.countDown();
+                    boolean relay = relayServerOutput();
                     do {
-                        Logging.INSTANCE.info(TAG, "SERVER OUT: " + line);
+                        if (relay) {
+                            Logging.INSTANCE.info(TAG, "SERVER OUT: " + line);
+                        }
                     } while ((line = reader.readLine()) != null);
                 } catch (IOException e) {
                     Logging.INSTANCE.error(TAG, "startServer error: " + e.getMessage());
@@ -60,9 +63,12 @@ public abstract class Connection {
                 BufferedReader reader = new BufferedReader(
                         new InputStreamReader(serverProcess.getErrorStream()));
                 String line;
+                boolean relay = relayServerOutput();
                 try {
                     while ((line = reader.readLine()) != null) {
-                        Logging.INSTANCE.info(TAG, "SERVER ERR: " + line);
+                        if (relay) {
+                            Logging.INSTANCE.info(TAG, "SERVER ERR: " + line);
+                        }
                     }
                 } catch (IOException e) {
                     Logging.INSTANCE.error(TAG, "startServer error: " + e.getMessage());
@@ -105,6 +111,13 @@ public abstract class Connection {
         return "/";
     }
 
+    /**
+     * Whether to log the server output, it's always read to keep the server from blocking.
+     */
+    boolean relayServerOutput() {
+        return true;
+    }
+
     IO.Options createOptions() {
         IO.Options opts = new IO.Options();
         opts.forceNew = true;
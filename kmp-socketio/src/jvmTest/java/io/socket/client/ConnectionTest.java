@@ -296,6 +296,43 @@ public class ConnectionTest extends Connection {
         values.take();
     }
 
+    @Test(timeout = TIMEOUT)
+    public void routeBinaryPacketsToTheirNamespaceOnly() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        final Manager manager = new Manager(uri(), new Manager.Options(), TestUtil.testScope());
+        socket = TestUtil.socket(manager, "/");
+        socket.on(Socket.EVENT_ERROR, new Emitter.Listener() {
+            @Override
+            public void call(Object... args) {
+                values.offer("error on /");
+            }
+        }).on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+            @Override
+            public void call(Object... objects) {
+                socket2 = TestUtil.socket(manager, "/foo");
+                socket2.on("roomBack", new Emitter.Listener() {
+                    @Override
+                    public void call(Object... args) {
+                        values.offer(args[0]);
+                    }
+                }).on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                    @Override
+                    public void call(Object... args) {
+                        socket2.emit("room", new ByteString(new byte[]{1, 2}, 0, 2));
+                    }
+                });
+                socket2.open();
+            }
+        });
+        socket.open();
+
+        assertThat(values.take(), is((Object) new ByteString(new byte[]{1, 2}, 0, 2)));
+        socket2.close();
+        socket.close();
+        TestUtil.closeManager(manager);
+        assertThat(values.isEmpty(), is(true));
+    }
+
     @Test(timeout = TIMEOUT)
     public void connectToNamespaceAfterConnectionGetsClosed() throws InterruptedException {
         final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
@@ -0,0 +1,195 @@
+package io.socket.client;
+
+import com.piasy.kmp.socketio.emitter.Emitter;
+import com.piasy.kmp.socketio.engineio.CountingSocketMetrics;
+import com.piasy.kmp.socketio.engineio.LatencyHistogram;
+import com.piasy.kmp.socketio.engineio.transports.PollingXHR;
+import com.piasy.kmp.socketio.engineio.transports.WebSocket;
+import com.piasy.kmp.socketio.socketio.Ack;
+import com.piasy.kmp.socketio.socketio.IO;
+import com.piasy.kmp.socketio.socketio.Socket;
+import com.piasy.kmp.xlog.Logging;
+import kotlin.Unit;
+import kotlinx.io.bytestring.ByteString;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Load test against the local node server, skipped unless `-Dsocketio.load=true`.
+ *
+ * Options (system properties):
+ * <ul>
+ *     <li>socketio.load.clients: number of clients, default 1000</li>
+ *     <li>socketio.load.emits: emits per client, default 100</li>
+ *     <li>socketio.load.workload: emit (echo back), ack or binary (ack with binary), default ack</li>
+ *     <li>socketio.load.transport: websocket or polling, default websocket</li>
+ *     <li>socketio.load.payload: payload size in bytes, default 64</li>
+ * </ul>
+ *
+ * e.g. `./gradlew :kmp-socketio:jvmTest --tests io.socket.client.LoadTest -Dsocketio.load=true
+ * -Dsocketio.load.clients=2000 -Dsocketio.load.transport=polling`
+ */
+@RunWith(JUnit4.class)
+public class LoadTest extends Connection {
+    private static final String PREFIX = "socketio.load.";
+
+    private final int clients = Integer.getInteger(PREFIX + "clients", 1000);
+    private final int emits = Integer.getInteger(PREFIX + "emits", 100);
+    private final String workload = System.getProperty(PREFIX + "workload", "ack");
+    private final String transport = System.getProperty(PREFIX + "transport", WebSocket.NAME);
+    private final int payloadSize = Integer.getInteger(PREFIX + "payload", 64);
+
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Assume.assumeTrue("load test disabled", Boolean.getBoolean("socketio.load"));
+    }
+
+    @Override
+    String[] createEnv() {
+        // server debug logs of thousands of clients would dominate the run
+        List<String> env = new ArrayList<>();
+        for (String entry : super.createEnv()) {
+            if (!entry.startsWith("DEBUG=")) {
+                env.add(entry);
+            }
+        }
+        return env.toArray(new String[0]);
+    }
+
+    @Override
+    boolean relayServerOutput() {
+        return false;
+    }
+
+    @Test
+    public void load() throws InterruptedException {
+        assertThat(transport.equals(WebSocket.NAME) || transport.equals(PollingXHR.NAME), is(true));
+        assertThat(Arrays.asList("emit", "ack", "binary").contains(workload), is(true));
+
+        CountingSocketMetrics metrics = new CountingSocketMetrics();
+        LatencyHistogram connectTime = new LatencyHistogram();
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        CountDownLatch connected = new CountDownLatch(clients);
+        long connectStart = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            IO.Options opts = createOptions();
+            opts.transports = Arrays.asList(transport);
+            opts.upgrade = false;
+            opts.reconnection = false;
+            opts.metrics = metrics;
+            long start = System.nanoTime();
+            client("/", opts, socket -> {
+                sockets.add(socket);
+                socket.once(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                    @Override
+                    public void call(Object... args) {
+                        connectTime.record((System.nanoTime() - start) / 1000);
+                        connected.countDown();
+                    }
+                });
+                socket.open();
+                return Unit.INSTANCE;
+            });
+        }
+        boolean allConnected = connected.await(60 + clients / 50, TimeUnit.SECONDS);
+        long connectMs = (System.nanoTime() - connectStart) / 1_000_000;
+        long heapAfter = usedHeap();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+        assertThat("connected " + (clients - connected.getCount()) + " of " + clients, allConnected, is(true));
+
+        CountDownLatch done = new CountDownLatch(clients * emits);
+        byte[] bytes = new byte[payloadSize];
+        Arrays.fill(bytes, (byte) 'a');
+        String text = new String(bytes);
+        ByteString binary = new ByteString(bytes, 0, bytes.length);
+        Ack ack = new Ack() {
+            @Override
+            public void call(Object... args) {
+                done.countDown();
+            }
+        };
+
+        long workStart = System.nanoTime();
+        for (Socket socket : sockets) {
+            if (workload.equals("emit")) {
+                socket.on("echoBack", new Emitter.Listener() {
+                    @Override
+                    public void call(Object... args) {
+                        done.countDown();
+                    }
+                });
+            }
+            for (int i = 0; i < emits; i++) {
+                switch (workload) {
+                    case "emit":
+                        socket.emit("echo", text);
+                        break;
+                    case "ack":
+                        socket.emit("ack", text, ack);
+                        break;
+                    default:
+                        socket.emit("ack", binary, ack);
+                        break;
+                }
+            }
+        }
+        boolean allDone = done.await(60 + (long) clients * emits / 1000, TimeUnit.SECONDS);
+        double workSeconds = (System.nanoTime() - workStart) / 1e9;
+        long finished = (long) clients * emits - done.getCount();
+
+        StringBuilder report = new StringBuilder()
+                .append("load test: ").append(clients).append(" clients, ").append(transport)
+                .append(", ").append(workload).append(" x ").append(emits)
+                .append(", payload ").append(payloadSize).append(" bytes\n")
+                .append("connect: total ").append(connectMs).append(" ms, p50 ")
+                .append(connectTime.percentile(50.0) / 1000).append(" ms, p99 ")
+                .append(connectTime.percentile(99.0) / 1000).append(" ms\n")
+                .append("throughput: ").append(finished).append(" in ")
+                .append(String.format("%.2f", workSeconds)).append(" s, ")
+                .append(String.format("%.0f", finished / workSeconds)).append(" msg/s\n");
+        LatencyHistogram ackLatency = metrics.ackLatency("ack");
+        if (ackLatency != null) {
+            report.append("ack latency: p50 ").append(ackLatency.percentile(50.0) / 1000)
+                    .append(" ms, p99 ").append(ackLatency.percentile(99.0) / 1000)
+                    .append(" ms, max ").append(ackLatency.getMaxValue() / 1000).append(" ms\n");
+        }
+        report.append("per connection: heap ").append((heapAfter - heapBefore) / clients)
+                .append(" bytes, threads ")
+                .append(String.format("%.3f", (threadsAfter - threadsBefore) / (double) clients))
+                .append('\n')
+                .append(metrics.snapshot());
+        Logging.INSTANCE.info(TAG, report.toString());
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        assertThat("finished " + finished + " of " + (long) clients * emits, allDone, is(true));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,204 @@
+package io.socket.client;
+
+import com.piasy.kmp.socketio.emitter.Emitter;
+import com.piasy.kmp.socketio.engineio.TestUtil;
+import com.piasy.kmp.socketio.engineio.transports.PollingXHR;
+import com.piasy.kmp.socketio.engineio.transports.ResourceTracker;
+import com.piasy.kmp.socketio.engineio.transports.WebSocket;
+import com.piasy.kmp.socketio.socketio.Ack;
+import com.piasy.kmp.socketio.socketio.IO;
+import com.piasy.kmp.socketio.socketio.Socket;
+import com.piasy.kmp.xlog.Logging;
+import kotlin.Unit;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Soak test against the local node server, skipped unless `-Dsocketio.soak=true`.
+ *
+ * Each cycle, a fresh client connects, emits acks and closes, and a long-lived
+ * client emits acks, then its engine is closed and it reconnects. Heap, threads,
+ * live coroutines, transports, open HttpClients and listener counts are sampled
+ * after GC, the test fails if any of them keeps growing, i.e. the minimum of the
+ * last third of samples is above the maximum of the first third, with some slack.
+ *
+ * Options (system properties):
+ * <ul>
+ *     <li>socketio.soak.minutes: duration, default 60</li>
+ *     <li>socketio.soak.sample: sample interval in seconds, default 60</li>
+ *     <li>socketio.soak.emits: acks per client per cycle, default 10</li>
+ *     <li>socketio.soak.transport: websocket or polling, default websocket</li>
+ * </ul>
+ *
+ * e.g. `./gradlew :kmp-socketio:jvmTest --tests io.socket.client.SoakTest -Dsocketio.soak=true
+ * -Dsocketio.soak.minutes=240`
+ */
+@RunWith(JUnit4.class)
+public class SoakTest extends Connection {
+    private static final String PREFIX = "socketio.soak.";
+    private static final String[] METRICS = {
+            "heap", "threads", "coroutines", "transports", "httpClients", "listeners"
+    };
+
+    private final long minutes = Long.getLong(PREFIX + "minutes", 60);
+    private final long sampleSeconds = Long.getLong(PREFIX + "sample", 60);
+    private final int emits = Integer.getInteger(PREFIX + "emits", 10);
+    private final String transport = System.getProperty(PREFIX + "transport", WebSocket.NAME);
+
+    private final ResourceTracker tracker = new ResourceTracker();
+
+    @BeforeClass
+    public static void checkEnabled() {
+        Assume.assumeTrue("soak test disabled", Boolean.getBoolean("socketio.soak"));
+    }
+
+    @Before
+    public void installTracker() {
+        tracker.install();
+    }
+
+    @After
+    public void uninstallTracker() {
+        tracker.uninstall();
+    }
+
+    @Test
+    public void soak() throws InterruptedException {
+        assertThat(transport.equals(WebSocket.NAME) || transport.equals(PollingXHR.NAME), is(true));
+
+        Semaphore connects = new Semaphore(0);
+        Socket longLived = connect(connects);
+        socket = longLived;
+
+        List<long[]> samples = new ArrayList<>();
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(minutes);
+        long nextSample = System.nanoTime() + TimeUnit.SECONDS.toNanos(sampleSeconds);
+        long cycles = 0;
+        while (System.nanoTime() < deadline) {
+            Socket fresh = connect(new Semaphore(0));
+            emitAcks(fresh);
+            fresh.close();
+
+            emitAcks(longLived);
+            TestUtil.closeEngineSocket(longLived);
+            assertThat("reconnect timeout", connects.tryAcquire(30, TimeUnit.SECONDS), is(true));
+            cycles++;
+
+            if (System.nanoTime() >= nextSample) {
+                long[] sample = sample(longLived);
+                samples.add(sample);
+                String log = "soak sample " + samples.size() + ", " + cycles + " cycles: "
+                        + format(sample);
+                Logging.INSTANCE.info(TAG, log);
+                nextSample = System.nanoTime() + TimeUnit.SECONDS.toNanos(sampleSeconds);
+            }
+        }
+
+        // the first sample is warm up
+        List<long[]> steady = samples.subList(Math.min(1, samples.size()), samples.size());
+        assertThat("too few samples: " + steady.size(), steady.size() >= 3, is(true));
+        int third = steady.size() / 3;
+        List<String> growing = new ArrayList<>();
+        for (int i = 0; i < METRICS.length; i++) {
+            long firstMax = Long.MIN_VALUE;
+            for (long[] sample : steady.subList(0, third)) {
+                firstMax = Math.max(firstMax, sample[i]);
+            }
+            long lastMin = Long.MAX_VALUE;
+            for (long[] sample : steady.subList(steady.size() - third, steady.size())) {
+                lastMin = Math.min(lastMin, sample[i]);
+            }
+            long slack = i == 0 ? Math.max(8 << 20, firstMax / 5) : 4;
+            if (lastMin > firstMax + slack) {
+                growing.add(METRICS[i] + " " + firstMax + " -> " + lastMin);
+            }
+        }
+        assertThat("growing after " + cycles + " cycles: " + growing, growing.isEmpty(), is(true));
+    }
+
+    private Socket connect(Semaphore connects) throws InterruptedException {
+        IO.Options opts = createOptions();
+        opts.transports = Arrays.asList(transport);
+        opts.upgrade = false;
+        opts.setReconnectionDelay(100);
+        opts.setRandomizationFactor(0.0);
+        BlockingQueue<Socket> created = new LinkedBlockingQueue<>();
+        client("/", opts, socket -> {
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    connects.release();
+                }
+            });
+            socket.open();
+            created.offer(socket);
+            return Unit.INSTANCE;
+        });
+        Socket socket = created.take();
+        assertThat("connect timeout", connects.tryAcquire(30, TimeUnit.SECONDS), is(true));
+        return socket;
+    }
+
+    private void emitAcks(Socket socket) throws InterruptedException {
+        CountDownLatch acked = new CountDownLatch(emits);
+        Ack ack = new Ack() {
+            @Override
+            public void call(Object... args) {
+                acked.countDown();
+            }
+        };
+        for (int i = 0; i < emits; i++) {
+            socket.emit("ack", i, ack);
+        }
+        assertThat("ack timeout", acked.await(30, TimeUnit.SECONDS), is(true));
+    }
+
+    private long[] sample(Socket socket) throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        long listeners = 0;
+        for (int count : TestUtil.listenerCounts(socket).values()) {
+            listeners += count;
+        }
+        return new long[]{
+                runtime.totalMemory() - runtime.freeMemory(),
+                ManagementFactory.getThreadMXBean().getThreadCount(),
+                tracker.liveCoroutines(),
+                tracker.liveTransports(),
+                tracker.openHttpClients(),
+                listeners,
+        };
+    }
+
+    private static String format(long[] sample) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < METRICS.length; i++) {
+            if (i > 0) {
+                builder.append(", ");
+            }
+            builder.append(METRICS[i]).append(' ').append(sample[i]);
+        }
+        return builder.toString();
+    }
+}
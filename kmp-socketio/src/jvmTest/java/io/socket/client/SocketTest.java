@@ -2,6 +2,7 @@ package io.socket.client;
 
 import com.piasy.kmp.socketio.engineio.transports.WebSocket;
 import io.socket.util.Optional;
+import kotlin.Pair;
 import kotlin.Unit;
 import kotlinx.io.bytestring.ByteString;
 import kotlinx.serialization.json.JsonObject;
@@ -15,6 +16,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.*;
@@ -26,6 +28,8 @@ import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
 
 import com.piasy.kmp.socketio.emitter.Emitter;
+import com.piasy.kmp.socketio.engineio.CountingSocketMetrics;
+import com.piasy.kmp.socketio.engineio.SocketTracer;
 import com.piasy.kmp.socketio.engineio.TestUtil;
 import com.piasy.kmp.socketio.socketio.Ack;
 import com.piasy.kmp.socketio.socketio.AckWithTimeout;
@@ -522,4 +526,391 @@ public class SocketTest extends Connection {
         assertThat((String) values.take(), is("2"));
         assertThat(((ByteString) values.take()).getBackingArrayReference(), is(new byte[] { 3 }));
     }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldDiscardVolatileEventsWhenNotConnected() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        IO.Options opts = new IO.Options();
+        opts.transports = Arrays.asList(WebSocket.NAME);
+        client("/", opts, socket -> {
+            this.socket = socket;
+
+            socket.volatileEmitter().emit("echo", "discarded");
+
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... objects) {
+                    socket.volatileEmitter().emit("echo", "sent");
+                }
+            });
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("sent"));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldEmitBatchEventsInOrder() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        client("/", socket -> {
+            this.socket = socket;
+
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+            socket.emitBatch(Arrays.asList(
+                    new Pair<>("echo", new Object[]{"first"}),
+                    new Pair<>("echo", new Object[]{"second"}),
+                    new Pair<>("ack", new Object[]{"third", new Ack() {
+                        @Override
+                        public void call(Object... args) {
+                            values.offer(args[0]);
+                        }
+                    }})
+            ));
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("first"));
+        assertThat((String) values.take(), is("second"));
+        assertThat((String) values.take(), is("third"));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldKeepEmitOrderOfEachCallerThread() throws InterruptedException {
+        final int threads = 4;
+        final int count = 50;
+        final BlockingQueue<Object[]> values = new LinkedBlockingQueue<>();
+
+        client("/", socket -> {
+            this.socket = socket;
+
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args);
+                }
+            });
+            socket.open();
+
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                new Thread(() -> {
+                    for (int i = 0; i < count; i++) {
+                        socket.emit("echo", thread, i);
+                    }
+                }).start();
+            }
+            return Unit.INSTANCE;
+        });
+
+        int[] next = new int[threads];
+        for (int i = 0; i < threads * count; i++) {
+            Object[] args = values.take();
+            int thread = (Integer) args[0];
+            assertThat((Integer) args[1], is(next[thread]));
+            next[thread]++;
+        }
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldWaitForAckCreditWhenWindowIsFull() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        IO.Options opts = createOptions();
+        opts.maxInFlightAcks = 1;
+        client("/", opts, socket -> {
+            this.socket = socket;
+
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    socket.emit("unknown", new AckWithTimeout(200) {
+                        @Override
+                        public void onTimeout() {
+                            values.offer("timeout");
+                        }
+
+                        @Override
+                        public void onSuccess(Object... args) {
+                            fail();
+                        }
+                    });
+                    // sent only after the first one timed out
+                    socket.emit("ack", "second", new Ack() {
+                        @Override
+                        public void call(Object... args) {
+                            values.offer(args[0]);
+                        }
+                    });
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("timeout"));
+        assertThat((String) values.take(), is("second"));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldRecordAckLatency() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        final CountingSocketMetrics metrics = new CountingSocketMetrics();
+
+        IO.Options opts = createOptions();
+        opts.metrics = metrics;
+        client("/", opts, socket -> {
+            this.socket = socket;
+
+            // emitted before connect, so the latency includes the buffered time
+            socket.emit("ack", "latency", new Ack() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+            socket.emit("unknown", new AckWithTimeout(200) {
+                @Override
+                public void onTimeout() {
+                    values.offer("timeout");
+                }
+
+                @Override
+                public void onSuccess(Object... args) {
+                    fail();
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("latency"));
+        assertThat((String) values.take(), is("timeout"));
+        assertThat(metrics.ackLatency("ack").getCount(), is(1L));
+        assertThat(metrics.ackLatency("unknown").getCount(), is(1L));
+        assertThat(metrics.ackLatency("unknown").percentile(50.0) >= 150_000L, is(true));
+        assertThat(metrics.snapshot().getAckTimeouts(), is(1L));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldTraceConnectAndEmitLifecycle() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        final List<String> traces = new CopyOnWriteArrayList<>();
+
+        IO.Options opts = createOptions();
+        opts.tracer = new SocketTracer() {
+            @Override
+            public void onOpenStart(@NotNull String uri) {
+                traces.add("openStart");
+            }
+
+            @Override
+            public void onOpenEnd(@NotNull String uri, String error) {
+                traces.add("openEnd " + error);
+            }
+
+            @Override
+            public void onHandshake(@NotNull String transport, @NotNull String sid) {
+                traces.add("handshake");
+            }
+
+            @Override
+            public void onSocketConnectStart(@NotNull String nsp) {
+                traces.add("connectStart " + nsp);
+            }
+
+            @Override
+            public void onSocketConnectEnd(@NotNull String nsp, @NotNull String sid) {
+                traces.add("connectEnd " + nsp);
+            }
+
+            @Override
+            public void onEmit(@NotNull String nsp, @NotNull String event, Integer ackId) {
+                traces.add("emit " + event + " " + ackId);
+            }
+
+            @Override
+            public void onFlush(@NotNull String transport, int packets) {
+                traces.add("flush");
+            }
+
+            @Override
+            public void onAck(@NotNull String nsp, int ackId) {
+                traces.add("ack " + ackId);
+            }
+        };
+        client("/", opts, socket -> {
+            this.socket = socket;
+
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    socket.emit("ack", "traced", new Ack() {
+                        @Override
+                        public void call(Object... args) {
+                            values.offer(args[0]);
+                        }
+                    });
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("traced"));
+        int emit = traces.indexOf("emit ack 0");
+        assertThat(traces.subList(0, 3), is(Arrays.asList("openStart", "handshake", "openEnd null")));
+        assertThat(traces.indexOf("connectStart /") < traces.indexOf("connectEnd /"), is(true));
+        assertThat(traces.indexOf("connectEnd /") < emit, is(true));
+        assertThat(traces.subList(emit, traces.size()).contains("flush"), is(true));
+        assertThat(traces.get(traces.size() - 1), is("ack 0"));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldReceiveEventsWithLazyDecode() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        IO.Options opts = createOptions();
+        opts.lazyDecode = true;
+        client("/", opts, socket -> {
+            this.socket = socket;
+
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                    values.offer(args[1]);
+                }
+            });
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    socket.emit("echo", 1, "2");
+                    socket.emit("ack", "3", new Ack() {
+                        @Override
+                        public void call(Object... args) {
+                            values.offer(args[0]);
+                        }
+                    });
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((Integer) values.take(), is(1));
+        assertThat((String) values.take(), is("2"));
+        assertThat((String) values.take(), is("3"));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldEmitAndReceiveNestedBinary() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+        final ByteString bin = new ByteString(new byte[]{1, 2, 3}, 0, 3);
+
+        client("/", socket -> {
+            this.socket = socket;
+
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+            socket.emit("echo", singletonMap("data", Arrays.asList("a", bin)));
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat(values.take(), is((Object) singletonMap("data", Arrays.asList("a", bin))));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldConflateBufferedEventsWhenNotConnected() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        client("/", socket -> {
+            this.socket = socket;
+
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+            // buffered until connected, replaced in place in sendBuffer
+            socket.emitConflated("a", "echo", "a1");
+            socket.emitConflated("b", "echo", "b1");
+            socket.emit("echo", "plain");
+            socket.emitConflated("a", "echo", "a2");
+            socket.emitConflated("b", "echo", "b2");
+            socket.emit("echo", "last");
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("a2"));
+        assertThat((String) values.take(), is("b2"));
+        assertThat((String) values.take(), is("plain"));
+        assertThat((String) values.take(), is("last"));
+        assertThat(values.poll(200, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
+
+    @Test(timeout = TIMEOUT)
+    public void shouldSendLatestConflatedEventWhenConnected() throws InterruptedException {
+        final BlockingQueue<Object> values = new LinkedBlockingQueue<>();
+
+        client("/", socket -> {
+            this.socket = socket;
+
+            socket.on(Socket.EVENT_CONNECT, new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    // drained together after this listener returns, the first
+                    // packet is flushed, the conflated ones wait in writeBuffer
+                    socket.emit("echo", "first");
+                    for (int i = 0; i < 10; i++) {
+                        socket.emitConflated("key", "echo", "conflated " + i);
+                    }
+                    socket.emit("echo", "last");
+                }
+            });
+            socket.on("echoBack", new Emitter.Listener() {
+                @Override
+                public void call(Object... args) {
+                    values.offer(args[0]);
+                }
+            });
+
+            socket.open();
+            return Unit.INSTANCE;
+        });
+
+        assertThat((String) values.take(), is("first"));
+        assertThat((String) values.take(), is("conflated 9"));
+        assertThat((String) values.take(), is("last"));
+        assertThat(values.poll(200, TimeUnit.MILLISECONDS), is(nullValue()));
+    }
 }
@@ -2,6 +2,7 @@ package com.piasy.kmp.socketio.emitter
 
 import kotlin.test.Test
 import kotlin.test.assertEquals
+import kotlin.test.assertTrue
 
 class EmitterTest {
     @Test
@@ -47,4 +48,56 @@ class EmitterTest {
         assertEquals("1", events[0][1])
         assertEquals(2, events[0][2])
     }
+
+    @Test
+    fun `report slow listeners`() {
+        val slow = ArrayList<Triple<String, String, Long>>()
+        val calls = ArrayList<String>()
+
+        val emitter = Emitter()
+        emitter.slowListenerDetector = SlowListenerDetector(20) { event, listener, micros ->
+            slow.add(Triple(event, listener, micros))
+        }
+        emitter.on("fast") { calls.add("fast") }
+        emitter.on("slow", SlowListener(calls))
+        emitter.once("slow") {
+            Thread.sleep(30)
+            calls.add("slow once")
+        }
+        emitter.emit("fast")
+        emitter.emit("slow")
+
+        assertEquals(listOf("fast", "slow", "slow once"), calls)
+        assertEquals(2, slow.size)
+        assertEquals("slow", slow[0].first)
+        assertTrue(slow[0].second.contains("SlowListener"), slow[0].second)
+        assertTrue(slow[0].third >= 30_000)
+        assertTrue(slow[1].second.contains("EmitterTest"), slow[1].second)
+    }
+
+    @Test
+    fun `listener count`() {
+        val emitter = Emitter()
+        val listener = object : Emitter.Listener {
+            override fun call(vararg args: Any) {}
+        }
+        emitter.on("a", listener)
+        emitter.on("b", listener)
+        emitter.once("b") {}
+        assertEquals(3, emitter.listenerCount())
+
+        emitter.emit("b")
+        assertEquals(2, emitter.listenerCount())
+        emitter.off("a", listener)
+        assertEquals(1, emitter.listenerCount())
+        emitter.off()
+        assertEquals(0, emitter.listenerCount())
+    }
+
+    private class SlowListener(private val calls: MutableList<String>) : Emitter.Listener {
+        override fun call(vararg args: Any) {
+            Thread.sleep(30)
+            calls.add("slow")
+        }
+    }
 }
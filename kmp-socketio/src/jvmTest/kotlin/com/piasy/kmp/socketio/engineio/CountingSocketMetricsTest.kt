@@ -0,0 +1,81 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class CountingSocketMetricsTest {
+
+    @Test
+    fun `count per transport`() {
+        val metrics = CountingSocketMetrics()
+        metrics.onPacketsSent("polling", 3)
+        metrics.onBytesSent("polling", 20)
+        metrics.onPacketReceived("polling")
+        metrics.onBytesReceived("polling", 5)
+        metrics.onPacketsSent("websocket", 1)
+        metrics.onPacketsSent("websocket", 2)
+
+        val snapshot = metrics.snapshot()
+        assertEquals(CountingSocketMetrics.TransportSnapshot(3, 20, 1, 5), snapshot.transports["polling"])
+        assertEquals(CountingSocketMetrics.TransportSnapshot(3, 0, 0, 0), snapshot.transports["websocket"])
+    }
+
+    @Test
+    fun `gauges keep latest and max`() {
+        val metrics = CountingSocketMetrics()
+        metrics.onWriteBufferDepth(3)
+        metrics.onWriteBufferDepth(7)
+        metrics.onWriteBufferDepth(0)
+        metrics.onSendBufferDepth(2)
+        metrics.onFlush(4)
+        metrics.onFlush(2)
+        metrics.onUpgrade("websocket", true)
+        metrics.onUpgrade("websocket", false)
+        metrics.onReconnectAttempt(1)
+        metrics.onPingTimeout()
+
+        val snapshot = metrics.snapshot()
+        assertEquals(0, snapshot.writeBufferDepth)
+        assertEquals(7, snapshot.maxWriteBufferDepth)
+        assertEquals(2, snapshot.sendBufferDepth)
+        assertEquals(2, snapshot.maxSendBufferDepth)
+        assertEquals(2, snapshot.flushes)
+        assertEquals(3.0, snapshot.packetsPerFlush)
+        assertEquals(1, snapshot.upgrades)
+        assertEquals(1, snapshot.upgradeErrors)
+        assertEquals(1, snapshot.reconnectAttempts)
+        assertEquals(1, snapshot.pingTimeouts)
+    }
+
+    @Test
+    fun `count from multiple threads`() = runBlocking {
+        val metrics = CountingSocketMetrics()
+        val jobs = (1..8).map { index ->
+            launch(Dispatchers.Default) {
+                repeat(1000) {
+                    metrics.onPacketsSent("transport${index % 4}", 1)
+                    metrics.onBytesSent("transport${index % 4}", 2)
+                }
+            }
+        }
+        jobs.forEach { it.join() }
+
+        val snapshot = metrics.snapshot()
+        assertEquals(4, snapshot.transports.size)
+        assertEquals(8000, snapshot.transports.values.sumOf { it.packetsOut })
+        assertEquals(16000, snapshot.transports.values.sumOf { it.bytesOut })
+    }
+
+    @Test
+    fun utf8Size() {
+        assertEquals(0, Transport.utf8Size(""))
+        assertEquals(5, Transport.utf8Size("hello"))
+        assertEquals(2, Transport.utf8Size("é"))
+        assertEquals(6, Transport.utf8Size("你好"))
+        assertEquals(4, Transport.utf8Size("😀"))
+        assertEquals("a😀你é".encodeToByteArray().size.toLong(), Transport.utf8Size("a😀你é"))
+    }
+}
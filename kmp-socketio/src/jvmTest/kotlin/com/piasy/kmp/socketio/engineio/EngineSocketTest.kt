@@ -373,6 +373,35 @@ class EngineSocketTest : BaseTest() {
         assertEquals(expected, eventsSent)
     }
 
+    @Test
+    fun sendConflated() = runTest {
+        val sock = prepareSocket(listOf(WebSocket.NAME), this)
+        sock.socket.open()
+
+        // transport isn't writable before it's opened, so packets stay in writeBuffer
+        sock.socket.sendConflated("a", event("a1"))
+        sock.socket.send(event("ev1"))
+        sock.socket.sendConflated("b", event("b1"))
+        sock.socket.sendConflated("a", event("a2"))
+        sock.socket.sendConflated("b", event("b2"))
+        advanceUntilIdle()
+        sock.socket.sendConflated("a", event("a3"))
+        assertEquals(3, sock.socket.writeBuffer.size)
+
+        sock.socket.send(event("ev2"))
+        advanceUntilIdle()
+        // "a" is flushed, so it won't be replaced anymore
+        sock.socket.sendConflated("a", event("a4"))
+        advanceUntilIdle()
+
+        val eventsSent = sock.transport.packets.map {
+            @Suppress("UNCHECKED_CAST")
+            ((it as EngineIOPacket.Message<SocketIOPacket.Event>)
+                .payload.payload[0] as JsonPrimitive).content
+        }
+        assertEquals(listOf("a3", "ev1", "b2", "ev2", "a4"), eventsSent)
+    }
+
     @Test
     fun onMessage() = runTest {
         val sock = prepareSocket(listOf(WebSocket.NAME), this)
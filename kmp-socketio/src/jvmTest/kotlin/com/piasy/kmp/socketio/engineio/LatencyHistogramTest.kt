@@ -0,0 +1,77 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class LatencyHistogramTest {
+
+    @Test
+    fun `exact for small values`() {
+        val histogram = LatencyHistogram()
+        for (i in 1L..10L) {
+            histogram.record(i)
+        }
+        assertEquals(10, histogram.count)
+        assertEquals(5, histogram.percentile(50.0))
+        assertEquals(9, histogram.percentile(90.0))
+        assertEquals(10, histogram.percentile(100.0))
+        assertEquals(10, histogram.maxValue)
+        assertEquals(5.5, histogram.mean)
+    }
+
+    @Test
+    fun `percentiles within relative error`() {
+        val histogram = LatencyHistogram()
+        for (i in 1L..100_000L) {
+            histogram.record(i * 10)
+        }
+        for (p in listOf(50.0, 90.0, 99.0, 99.9)) {
+            val expected = (p * 10_000).toLong()
+            val actual = histogram.percentile(p)
+            assertTrue(actual >= expected && actual <= expected + expected / 32, "p$p: $actual vs $expected")
+        }
+        assertEquals(1_000_000, histogram.percentile(100.0))
+    }
+
+    @Test
+    fun `empty and clamped`() {
+        val histogram = LatencyHistogram()
+        assertEquals(0, histogram.percentile(99.0))
+        assertEquals(0.0, histogram.mean)
+
+        histogram.record(-1)
+        histogram.record(Long.MAX_VALUE)
+        assertEquals(2, histogram.count)
+        assertEquals(0, histogram.percentile(50.0))
+        assertEquals((1L shl 42) - 1, histogram.percentile(100.0))
+    }
+
+    @Test
+    fun `buckets are continuous`() {
+        var prev = -1L
+        for (index in 0..<LatencyHistogram.index((1L shl 42) - 1)) {
+            val highest = LatencyHistogram.highestValue(index)
+            assertEquals(index, LatencyHistogram.index(highest))
+            assertEquals(index + 1, LatencyHistogram.index(highest + 1))
+            assertTrue(highest > prev)
+            prev = highest
+        }
+    }
+
+    @Test
+    fun `record from multiple threads`() = runBlocking {
+        val histogram = LatencyHistogram()
+        val jobs = (1..8).map {
+            launch(Dispatchers.Default) {
+                repeat(10_000) { histogram.record(it.toLong()) }
+            }
+        }
+        jobs.forEach { it.join() }
+        assertEquals(80_000, histogram.count)
+        assertEquals(9_999, histogram.maxValue)
+    }
+}
@@ -6,7 +6,10 @@ import com.piasy.kmp.socketio.socketio.Manager
 import com.piasy.kmp.socketio.socketio.Socket
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withContext
 import kotlinx.serialization.json.*
 import org.json.JSONObject
 
@@ -58,9 +61,39 @@ object TestUtil {
     @JvmStatic
     fun engineId(socket: Socket) = socket.io.engine?.id
 
+    /**
+     * Number of acks the socket is waiting for, read on the work thread.
+     */
+    @JvmStatic
+    fun ackCount(socket: Socket): Int {
+        val engine = socket.io.engine ?: return 0
+        return runBlocking {
+            withContext(engine.scope.coroutineContext.minusKey(Job)) { socket.ackCount() }
+        }
+    }
+
     @JvmStatic
     fun engineSocket(socket: Socket) = socket.io.engine
 
+    /**
+     * Listener counts of the socket, its manager, engine and transport,
+     * read on the work thread, empty if the engine isn't open.
+     */
+    @JvmStatic
+    fun listenerCounts(socket: Socket): Map<String, Int> {
+        val engine = socket.io.engine ?: return emptyMap()
+        return runBlocking {
+            withContext(engine.scope.coroutineContext.minusKey(Job)) {
+                mapOf(
+                    "socket" to socket.listenerCount(),
+                    "manager" to socket.io.listenerCount(),
+                    "engine" to engine.listenerCount(),
+                    "transport" to (engine.transport?.listenerCount() ?: 0),
+                )
+            }
+        }
+    }
+
     @JvmStatic
     fun jsonBool(json: JsonObject, key: String): Boolean? {
         return json[key]?.jsonPrimitive?.boolean
@@ -0,0 +1,68 @@
+package com.piasy.kmp.socketio.engineio
+
+import com.piasy.kmp.socketio.engineio.transports.WebSocket
+import kotlinx.coroutines.runBlocking
+import kotlinx.io.Buffer
+import kotlinx.io.RawSink
+import kotlinx.io.buffered
+import java.io.IOException
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+class TrafficRecorderTest {
+
+    private class TestSink(private val fail: Boolean) : RawSink {
+        val writing = CountDownLatch(1)
+        val resume = CountDownLatch(1)
+        var closed = false
+
+        override fun write(source: Buffer, byteCount: Long) {
+            writing.countDown()
+            if (fail) {
+                throw IOException("disk full")
+            }
+            resume.await()
+            source.skip(byteCount)
+        }
+
+        override fun flush() {}
+
+        override fun close() {
+            closed = true
+        }
+    }
+
+    @Test
+    fun `stop recording on write error`() = runBlocking {
+        val sink = TestSink(fail = true)
+        val recorder = TrafficRecorder(sink.buffered())
+        recorder.record(WebSocket.NAME, false, "40")
+        assertTrue(sink.writing.await(1, TimeUnit.SECONDS))
+
+        // later frames are discarded, and close doesn't wait for them
+        recorder.record(WebSocket.NAME, false, "42[\"a\"]")
+        recorder.close()
+        assertTrue(sink.closed)
+        assertEquals(0, recorder.droppedFrames)
+    }
+
+    @Test
+    fun `drop frames when queue is full`() = runBlocking {
+        val sink = TestSink(fail = false)
+        val recorder = TrafficRecorder(sink.buffered(), capacity = 2)
+        recorder.record(WebSocket.NAME, false, "40")
+        // the writer is blocked by the first frame
+        assertTrue(sink.writing.await(1, TimeUnit.SECONDS))
+
+        repeat(5) {
+            recorder.record(WebSocket.NAME, true, "42[\"$it\"]")
+        }
+        assertEquals(3, recorder.droppedFrames)
+        sink.resume.countDown()
+        recorder.close()
+        assertTrue(sink.closed)
+    }
+}
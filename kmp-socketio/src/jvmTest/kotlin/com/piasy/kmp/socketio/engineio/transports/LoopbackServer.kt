@@ -0,0 +1,549 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.Transport
+import com.piasy.kmp.socketio.socketio.parser.JsonParser
+import com.piasy.kmp.socketio.socketio.parser.Parser
+import com.piasy.kmp.xlog.Logging
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonElement
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.buildJsonArray
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.put
+import org.hildan.socketio.EngineIO
+import org.hildan.socketio.EngineIOPacket
+import org.hildan.socketio.PayloadElement
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * In-process Engine.IO v4/Socket.IO v5 server stand-in, plug it into clients with
+ * `opt.transportFactory = server`, no node server or network is involved.
+ *
+ * It speaks handshake, long polling, websocket upgrade (probe and noop), ping/pong
+ * heartbeat, namespaces and acks. Packets are encoded into wire frames and decoded
+ * on both sides like real transports, but frames are handed over in memory: polling
+ * clients use the real [PollingXHR] with a ktor MockEngine, websocket clients use
+ * [LoopbackWebSocket]. The server runs on its own single threaded [scope].
+ *
+ * Namespace `/` has handlers like `socket-server.js`, see [echo], register other
+ * namespaces with [namespace] before connecting. [ServerSocket] methods must be
+ * called on [scope], e.g. in its handlers.
+ *
+ * Binary attachments are only supported at top level of event args.
+ */
+class LoopbackServer(
+    private val parser: Parser = JsonParser,
+    private val pingInterval: Int = 25000,
+    private val pingTimeout: Int = 20000,
+    private val upgrades: List<String> = listOf(WebSocket.NAME),
+    val scope: CoroutineScope = CoroutineScope(Dispatchers.Default.limitedParallelism(1)),
+) : TransportFactory {
+    /**
+     * Websocket connection of a client transport, called on server thread.
+     */
+    internal interface Peer {
+        fun onServerOpen()
+
+        /**
+         * @param data String for text frame, or ByteString for binary frame.
+         */
+        fun onServerFrame(data: Any)
+
+        fun onServerClose()
+    }
+
+    private val namespaces = HashMap<String, (ServerSocket) -> Unit>()
+    private val sessions = HashMap<String, Session>()
+    private val wsSessions = HashMap<Peer, Session>()
+    private var nextId = 0
+    private val httpFactory = LoopbackHttpClientFactory(this)
+
+    init {
+        namespace("/", ::echo)
+    }
+
+    /**
+     * Accept connections of [nsp], `onConnection` is called for each of them.
+     */
+    fun namespace(nsp: String, onConnection: (ServerSocket) -> Unit): LoopbackServer {
+        namespaces[nsp] = onConnection
+        return this
+    }
+
+    override fun create(
+        name: String,
+        opt: Transport.Options,
+        scope: CoroutineScope,
+        rawMessage: Boolean,
+    ) = when (name) {
+        WebSocket.NAME -> LoopbackWebSocket(opt, scope, rawMessage, this)
+        PollingXHR.NAME -> PollingXHR(opt, scope, factory = httpFactory, rawMessage = rawMessage)
+        else -> throw RuntimeException("Bad transport name: $name")
+    }
+
+    /**
+     * Long polling GET request, a handshake if [sid] is null.
+     */
+    internal fun get(sid: String?, onResponse: (String) -> Unit, onError: () -> Unit) {
+        scope.launch {
+            if (sid == null) {
+                val session = Session()
+                onResponse(session.handshake(upgrades))
+                return@launch
+            }
+            val session = sessions[sid]
+            if (session == null || session.pendingPoll != null) {
+                onError()
+                return@launch
+            }
+            session.pendingPoll = onResponse
+            session.flushPoll()
+        }
+    }
+
+    /**
+     * Polling POST request, [data] is a http batch of packets.
+     */
+    internal fun post(sid: String?, data: String, onResponse: () -> Unit, onError: () -> Unit) {
+        scope.launch {
+            val session = sessions[sid]
+            val packets = try {
+                EngineIO.decodeHttpBatch(data, deserializePayload = { it })
+            } catch (e: Exception) {
+                null
+            }
+            if (session == null || packets == null) {
+                onError()
+                return@launch
+            }
+            onResponse()
+            packets.forEach { session.onPacket(it) }
+        }
+    }
+
+    /**
+     * Websocket connection, a new session if [sid] is null, or an upgrade probe.
+     */
+    internal fun wsConnect(sid: String?, peer: Peer) {
+        scope.launch {
+            if (sid == null) {
+                val session = Session()
+                session.ws = peer
+                wsSessions[peer] = session
+                peer.onServerOpen()
+                peer.onServerFrame(session.handshake(emptyList()))
+                return@launch
+            }
+            val session = sessions[sid]
+            if (session == null || session.ws != null || session.probe != null) {
+                peer.onServerClose()
+                return@launch
+            }
+            session.probe = peer
+            wsSessions[peer] = session
+            peer.onServerOpen()
+        }
+    }
+
+    /**
+     * @param data String for text frame, or ByteString for binary frame.
+     */
+    internal fun wsSend(peer: Peer, data: Any) {
+        scope.launch {
+            val session = wsSessions[peer] ?: return@launch
+            val packet = try {
+                if (data is String) {
+                    EngineIO.decodeWsFrame(data, deserializePayload = { it })
+                } else {
+                    EngineIO.decodeWsFrame(data as ByteString)
+                }
+            } catch (e: Exception) {
+                Logging.error(TAG, "decode ws frame error: ${e.message}")
+                session.close("parse error", fromClient = false)
+                return@launch
+            }
+            if (peer === session.probe) {
+                session.onProbePacket(packet)
+            } else {
+                session.onPacket(packet)
+            }
+        }
+    }
+
+    internal fun wsClose(peer: Peer) {
+        scope.launch {
+            val session = wsSessions.remove(peer)
+            if (session != null && peer === session.ws) {
+                session.close("transport close", fromClient = true)
+            } else if (session != null && peer === session.probe) {
+                session.probe = null
+            }
+            peer.onServerClose()
+        }
+    }
+
+    /**
+     * An Engine.IO session, and the Socket.IO sockets of it, only accessed on server thread.
+     */
+    internal inner class Session {
+        val sid = "loopback${nextId++}"
+        var pendingPoll: ((String) -> Unit)? = null
+        var ws: Peer? = null
+        var probe: Peer? = null
+
+        private val outbox = ArrayList<EngineIOPacket<String>>()
+        private var closed = false
+        private var pingJob: Job? = null
+        private var pong: CompletableDeferred<Unit>? = null
+
+        private val sockets = HashMap<String, ServerSocket>()
+        private var nextSocketId = 0
+        private var binary: SocketIOPacket.BinaryMessage? = null
+        private val attachments = ArrayList<ByteString>()
+
+        init {
+            sessions[sid] = this
+        }
+
+        /**
+         * Start heartbeat, and return the encoded handshake packet.
+         */
+        fun handshake(upgrades: List<String>): String {
+            pingJob = scope.launch {
+                while (true) {
+                    delay(pingInterval.toLong())
+                    val pong = CompletableDeferred<Unit>()
+                    this@Session.pong = pong
+                    send(EngineIOPacket.Ping(null))
+                    if (withTimeoutOrNull(pingTimeout.toLong()) { pong.await() } == null) {
+                        close("ping timeout", fromClient = false)
+                        break
+                    }
+                }
+            }
+            // the handshake packet is encoded here, since clients never encode it.
+            return "0" + buildJsonObject {
+                put("sid", sid)
+                put("upgrades", buildJsonArray { upgrades.forEach { add(JsonPrimitive(it)) } })
+                put("pingInterval", pingInterval)
+                put("pingTimeout", pingTimeout)
+                put("maxPayload", 1000000)
+            }
+        }
+
+        fun send(packet: EngineIOPacket<String>) {
+            if (closed) {
+                return
+            }
+            val ws = this.ws
+            if (ws == null) {
+                outbox.add(packet)
+                flushPoll()
+            } else if (packet is EngineIOPacket.BinaryData) {
+                ws.onServerFrame(packet.payload)
+            } else {
+                ws.onServerFrame(EngineIO.encodeWsFrame(packet, serializePayload = { it }))
+            }
+        }
+
+        fun flushPoll() {
+            val poll = pendingPoll ?: return
+            if (outbox.isEmpty()) {
+                return
+            }
+            val data = EngineIO.encodeHttpBatch(outbox, serializePayload = { it })
+            outbox.clear()
+            pendingPoll = null
+            poll(data)
+        }
+
+        fun onProbePacket(packet: EngineIOPacket<String>) {
+            val probe = this.probe ?: return
+            when (packet) {
+                is EngineIOPacket.Ping -> {
+                    probe.onServerFrame(EngineIO.encodeWsFrame(EngineIOPacket.Pong(packet.payload), serializePayload = { it }))
+                    // let the pending poll return, so the client could pause polling.
+                    send(EngineIOPacket.Noop)
+                }
+
+                is EngineIOPacket.Upgrade -> {
+                    this.probe = null
+                    ws = probe
+                    val pending = ArrayList(outbox)
+                    outbox.clear()
+                    pendingPoll?.invoke(EngineIO.encodeHttpBatch(listOf(EngineIOPacket.Noop), serializePayload = { it }))
+                    pendingPoll = null
+                    pending.forEach { send(it) }
+                }
+
+                else -> {}
+            }
+        }
+
+        fun onPacket(packet: EngineIOPacket<String>) {
+            if (closed) {
+                return
+            }
+            when (packet) {
+                is EngineIOPacket.Ping -> send(EngineIOPacket.Pong(packet.payload))
+                is EngineIOPacket.Pong -> pong?.complete(Unit)
+                is EngineIOPacket.Message -> onData(packet.payload)
+                is EngineIOPacket.BinaryData -> onData(packet.payload)
+                is EngineIOPacket.Close -> close("transport close", fromClient = true)
+                else -> {}
+            }
+        }
+
+        fun close(reason: String, fromClient: Boolean) {
+            if (closed) {
+                return
+            }
+            Logging.info(TAG, "session $sid close: $reason")
+            if (!fromClient) {
+                val ws = this.ws
+                if (ws == null) {
+                    send(EngineIOPacket.Close)
+                } else {
+                    ws.onServerClose()
+                }
+            }
+            closed = true
+            pingJob?.cancel()
+            sessions.remove(sid)
+            ws?.let { wsSessions.remove(it) }
+            probe?.let {
+                wsSessions.remove(it)
+                it.onServerClose()
+            }
+            pendingPoll = null
+            val closing = ArrayList(sockets.values)
+            sockets.clear()
+            closing.forEach { it.onClose(reason) }
+        }
+
+        private fun onData(data: Any) {
+            val packets = try {
+                parser.decode(data)
+            } catch (e: Exception) {
+                Logging.error(TAG, "session $sid decode error: ${e.message}")
+                close("parse error", fromClient = false)
+                return
+            }
+            packets.forEach { dispatch(it) }
+        }
+
+        private fun dispatch(packet: Any) {
+            if (packet is ByteString) {
+                val message = binary ?: return
+                attachments.add(packet)
+                if (attachments.size == message.nBinaryAttachments) {
+                    val buffers = ArrayList(attachments)
+                    binary = null
+                    attachments.clear()
+                    onMessage(message, buffers)
+                }
+                return
+            }
+            when (packet) {
+                is SocketIOPacket.Connect -> onConnect(packet)
+                is SocketIOPacket.Disconnect -> {
+                    sockets.remove(packet.namespace)?.onClose("client namespace disconnect")
+                }
+
+                is SocketIOPacket.BinaryMessage -> {
+                    if (packet.nBinaryAttachments > 0) {
+                        binary = packet
+                    } else {
+                        onMessage(packet, emptyList())
+                    }
+                }
+
+                is SocketIOPacket.Message -> onMessage(packet, emptyList())
+                else -> {}
+            }
+        }
+
+        private fun onConnect(packet: SocketIOPacket.Connect) {
+            val nsp = packet.namespace
+            val onConnection = namespaces[nsp]
+            if (onConnection == null) {
+                sendPacket(SocketIOPacket.ConnectError(nsp, buildJsonObject {
+                    put("message", "Invalid namespace")
+                }), emptyList())
+                return
+            }
+            val socket = ServerSocket(this, nsp, "$sid#${nextSocketId++}", packet.payload)
+            sockets[nsp] = socket
+            sendPacket(SocketIOPacket.Connect(nsp, buildJsonObject { put("sid", socket.id) }), emptyList())
+            onConnection(socket)
+        }
+
+        private fun onMessage(packet: SocketIOPacket.Message, buffers: List<ByteString>) {
+            val socket = sockets[packet.namespace] ?: return
+            val args: List<Any> = when (packet) {
+                is SocketIOPacket.Event -> packet.payload
+                is SocketIOPacket.Ack -> packet.payload
+                is SocketIOPacket.BinaryMessage -> packet.payload.map {
+                    when (it) {
+                        is PayloadElement.AttachmentRef -> buffers[it.attachmentIndex]
+                        is PayloadElement.Json -> it.jsonElement
+                    }
+                }
+            }
+            if (packet is SocketIOPacket.Event || packet is SocketIOPacket.BinaryEvent) {
+                socket.onEvent(args, packet.ackId)
+            } else {
+                socket.onAck(packet.ackId ?: return, args)
+            }
+        }
+
+        fun sendPacket(packet: SocketIOPacket, buffers: List<ByteString>) {
+            parser.encode(packet, buffers).forEach {
+                send(if (it is ByteString) EngineIOPacket.BinaryData(it) else EngineIOPacket.Message(it as String))
+            }
+        }
+
+        fun removeSocket(socket: ServerSocket) {
+            if (sockets[socket.nsp] === socket) {
+                sockets.remove(socket.nsp)
+            }
+        }
+    }
+
+    /**
+     * A Socket.IO socket of the server, only accessed on server thread.
+     */
+    class ServerSocket internal constructor(
+        private val session: Session,
+        val nsp: String,
+        val id: String,
+        val auth: JsonObject?,
+    ) {
+        private val handlers = HashMap<String, (args: List<Any>, ack: ((List<Any>) -> Unit)?) -> Unit>()
+        private val acks = HashMap<Int, (List<Any>) -> Unit>()
+        private var nextAckId = 0
+
+        var connected = true
+            private set
+
+        /**
+         * Called when the socket is disconnected, with the reason.
+         */
+        var onDisconnect: ((String) -> Unit)? = null
+
+        /**
+         * Handle [event] from client, args are JsonElement or ByteString,
+         * `ack` is null if client doesn't want an ack.
+         */
+        fun on(event: String, handler: (args: List<Any>, ack: ((List<Any>) -> Unit)?) -> Unit) {
+            handlers[event] = handler
+        }
+
+        /**
+         * Emit [event] to client, args could be JsonElement, ByteString, String, Number or Boolean.
+         */
+        fun emit(event: String, args: List<Any> = emptyList(), ack: ((List<Any>) -> Unit)? = null) {
+            if (!connected) {
+                return
+            }
+            var ackId: Int? = null
+            if (ack != null) {
+                ackId = nextAckId++
+                acks[ackId] = ack
+            }
+            send(event, args, ackId, false)
+        }
+
+        fun disconnect() {
+            if (!connected) {
+                return
+            }
+            session.sendPacket(SocketIOPacket.Disconnect(nsp), emptyList())
+            session.removeSocket(this)
+            onClose("server namespace disconnect")
+        }
+
+        internal fun onEvent(args: List<Any>, ackId: Int?) {
+            val event = (args.firstOrNull() as? JsonPrimitive)?.content ?: return
+            val ack: ((List<Any>) -> Unit)? = if (ackId == null) null else { ackArgs ->
+                send(null, ackArgs, ackId, true)
+            }
+            handlers[event]?.invoke(args.drop(1), ack)
+        }
+
+        internal fun onAck(ackId: Int, args: List<Any>) {
+            acks.remove(ackId)?.invoke(args)
+        }
+
+        internal fun onClose(reason: String) {
+            if (!connected) {
+                return
+            }
+            connected = false
+            acks.clear()
+            onDisconnect?.invoke(reason)
+        }
+
+        private fun send(event: String?, args: List<Any>, ackId: Int?, isAck: Boolean) {
+            if (!connected) {
+                return
+            }
+            val buffers = ArrayList<ByteString>()
+            val payload = ArrayList<PayloadElement>(args.size + 1)
+            if (event != null) {
+                payload.add(PayloadElement.Json(JsonPrimitive(event)))
+            }
+            args.forEach {
+                if (it is ByteString) {
+                    payload.add(PayloadElement.AttachmentRef(buffers.size))
+                    buffers.add(it)
+                } else {
+                    payload.add(PayloadElement.Json(toJson(it)))
+                }
+            }
+            val packet = if (buffers.isEmpty()) {
+                val array = JsonArray(payload.map { (it as PayloadElement.Json).jsonElement })
+                if (isAck) SocketIOPacket.Ack(nsp, ackId!!, array) else SocketIOPacket.Event(nsp, ackId, array)
+            } else if (isAck) {
+                SocketIOPacket.BinaryAck(nsp, ackId!!, payload, buffers.size)
+            } else {
+                SocketIOPacket.BinaryEvent(nsp, ackId, payload, buffers.size)
+            }
+            session.sendPacket(packet, buffers)
+        }
+
+        private fun toJson(arg: Any): JsonElement = when (arg) {
+            is JsonElement -> arg
+            is String -> JsonPrimitive(arg)
+            is Number -> JsonPrimitive(arg)
+            is Boolean -> JsonPrimitive(arg)
+            else -> JsonPrimitive(arg.toString())
+        }
+    }
+
+    companion object {
+        private const val TAG = "LoopbackServer"
+
+        /**
+         * Handlers of `socket-server.js`: `echo` is emitted back as `echoBack`,
+         * `ack` is acknowledged with its args, `message` is sent back, and
+         * `requestDisconnect` disconnects the socket.
+         */
+        fun echo(socket: ServerSocket) {
+            socket.emit("message", listOf("hello client"))
+            socket.on("message") { args, _ -> socket.emit("message", args) }
+            socket.on("echo") { args, _ -> socket.emit("echoBack", args) }
+            socket.on("ack") { args, ack -> ack?.invoke(args) }
+            socket.on("requestDisconnect") { _, _ -> socket.disconnect() }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.TestUtil
+import com.piasy.kmp.socketio.socketio.Ack
+import com.piasy.kmp.socketio.socketio.AckWithTimeout
+import com.piasy.kmp.socketio.socketio.IO
+import com.piasy.kmp.socketio.socketio.Socket
+import com.piasy.kmp.socketio.socketio.on
+import com.piasy.kmp.socketio.socketio.parser.MsgPackParser
+import com.piasy.kmp.xlog.Logging
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.cancel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import kotlinx.coroutines.withTimeout
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonPrimitive
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
+
+class LoopbackServerTest {
+    private fun client(
+        server: LoopbackServer,
+        transports: List<String>,
+        nsp: String = "/",
+        block: IO.Options.() -> Unit = {},
+    ): CompletableDeferred<Socket> {
+        val opt = IO.Options()
+        opt.forceNew = true
+        opt.reconnection = false
+        opt.transports = transports
+        opt.transportFactory = server
+        opt.block()
+        val socket = CompletableDeferred<Socket>()
+        IO.socket("http://loopback$nsp", opt) { socket.complete(it) }
+        return socket
+    }
+
+    private suspend fun connect(socket: Socket) {
+        val connected = CompletableDeferred<Unit>()
+        socket.on(Socket.EVENT_CONNECT) { connected.complete(Unit) }
+        socket.open()
+        connected.await()
+    }
+
+    @Test
+    fun echoOverWebSocket() = runTest(timeout = 10.seconds) {
+        val socket = client(LoopbackServer(), listOf(WebSocket.NAME)).await()
+        val echoBack = CompletableDeferred<Array<out Any>>()
+        socket.on("echoBack") { echoBack.complete(it) }
+        connect(socket)
+
+        val bin = ByteString(byteArrayOf(0x1, 0x3, 0x1, 0x4))
+        socket.emit("echo", 1, "2", bin)
+        val args = echoBack.await()
+        assertEquals(1, args[0])
+        assertEquals("2", args[1])
+        assertEquals(bin, args[2])
+        socket.close()
+    }
+
+    @Test
+    fun ackOverPolling() = runTest(timeout = 10.seconds) {
+        val socket = client(LoopbackServer(), listOf(PollingXHR.NAME)).await()
+        connect(socket)
+
+        val bin = ByteString(byteArrayOf(0x1, 0x3))
+        val args = socket.emitWithAck("ack", "a", bin, timeout = 5000)
+        assertEquals(listOf<Any>("a", bin), args.toList())
+        socket.close()
+    }
+
+    @Test
+    fun upgradeToWebSocket() = runTest(timeout = 10.seconds) {
+        val socket = client(LoopbackServer(), listOf(PollingXHR.NAME, WebSocket.NAME)).await()
+        connect(socket)
+
+        withContext(Dispatchers.Default) {
+            withTimeout(5000) {
+                while (TestUtil.engineSocket(socket)?.let { TestUtil.transportName(it) } != WebSocket.NAME) {
+                    delay(10)
+                }
+            }
+        }
+        val args = socket.emitWithAck("ack", 1, timeout = 5000)
+        assertEquals(listOf<Any>(1), args.toList())
+        socket.close()
+    }
+
+    @Test
+    fun namespaces() = runTest(timeout = 10.seconds) {
+        val server = LoopbackServer().namespace("/foo") { socket ->
+            socket.emit("welcome", listOf(socket.nsp))
+        }
+        val welcome = CompletableDeferred<Array<out Any>>()
+        val foo = client(server, listOf(WebSocket.NAME), "/foo").await()
+        foo.on("welcome") { welcome.complete(it) }
+        foo.open()
+        assertEquals("/foo", welcome.await()[0])
+        foo.close()
+
+        val error = CompletableDeferred<Array<out Any>>()
+        val bar = client(server, listOf(WebSocket.NAME), "/bar").await()
+        bar.on(Socket.EVENT_CONNECT_ERROR) { error.complete(it) }
+        bar.open()
+        assertTrue(error.await()[0].toString().contains("Invalid namespace"))
+    }
+
+    @Test
+    fun serverAckAndDisconnect() = runTest(timeout = 10.seconds) {
+        val acked = CompletableDeferred<List<Any>>()
+        val server = LoopbackServer().namespace("/") { socket ->
+            LoopbackServer.echo(socket)
+            socket.emit("ack", listOf("ping")) { acked.complete(it) }
+        }
+        val socket = client(server, listOf(WebSocket.NAME)).await()
+        socket.on("ack") { args ->
+            (args.last() as Ack).call("pong")
+        }
+        val disconnected = CompletableDeferred<Array<out Any>>()
+        socket.on(Socket.EVENT_DISCONNECT) { disconnected.complete(it) }
+        connect(socket)
+
+        assertEquals(listOf<Any>(JsonPrimitive("pong")), acked.await())
+        socket.emit("requestDisconnect")
+        assertEquals("io server disconnect", disconnected.await()[0])
+    }
+
+    @Test
+    fun emitWithAckCancelledAndReserved() = runTest(timeout = 10.seconds) {
+        val received = ArrayList<List<Any>>()
+        val server = LoopbackServer().namespace("/") { socket ->
+            socket.on("counted") { args, ack ->
+                received.add(args)
+                ack?.invoke(args)
+            }
+        }
+        val socket = client(server, listOf(WebSocket.NAME)).await()
+        val error = CompletableDeferred<Array<out Any>>()
+        socket.on(Socket.EVENT_ERROR) { error.complete(it) }
+        connect(socket)
+
+        launch {
+            cancel()
+            socket.emitWithAck("counted", 1, timeout = 5000)
+        }.join()
+        assertEquals(listOf<Any>(2), socket.emitWithAck("counted", 2, timeout = 5000).toList())
+        assertEquals(listOf(listOf<Any>(JsonPrimitive(2))), received)
+
+        assertEquals(0, socket.emitWithAck(Socket.EVENT_CONNECT, timeout = 100).size)
+        assertTrue(error.await()[0].toString().contains("reserved"))
+        socket.close()
+    }
+
+    @Test
+    fun emitWithAckCancelledBeforeDrain() = runTest(timeout = 10.seconds) {
+        val cancelled = AtomicInteger()
+        val plain = AtomicInteger()
+        val server = LoopbackServer().namespace("/") { socket ->
+            socket.on("cancelled") { _, _ -> cancelled.incrementAndGet() }
+            socket.on("plain") { _, _ -> plain.incrementAndGet() }
+            socket.on("sync") { args, ack -> ack?.invoke(args) }
+        }
+        val socket = client(server, listOf(WebSocket.NAME)).await()
+        connect(socket)
+
+        // hold the work thread, so the drains run after all cancellations,
+        // while another thread keeps winning and losing the drain schedule.
+        val hold = CountDownLatch(1)
+        TestUtil.engineSocket(socket)!!.scope.launch { hold.await() }
+        val emitter = thread {
+            repeat(1000) { socket.emit("plain", it) }
+        }
+        repeat(100) {
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                socket.emitWithAck("cancelled", it, timeout = 5000)
+            }.cancel()
+        }
+        emitter.join()
+        hold.countDown()
+
+        assertEquals(listOf<Any>(1), socket.emitWithAck("sync", 1, timeout = 5000).toList())
+        assertEquals(0, cancelled.get())
+        assertEquals(1000, plain.get())
+        assertEquals(0, TestUtil.ackCount(socket))
+        socket.close()
+    }
+
+    @Test
+    fun emitsKeepOrderBehindAckWindow() = runTest(timeout = 10.seconds) {
+        val socket = client(LoopbackServer(), listOf(WebSocket.NAME)) { maxInFlightAcks = 1 }.await()
+        val received = Channel<Any>(Channel.UNLIMITED)
+        socket.on("echoBack") { received.trySend(it[0]) }
+        connect(socket)
+
+        // never acknowledged, so the window is full until it times out
+        socket.emit("unknown", object : AckWithTimeout(200) {
+            override fun onSuccess(vararg args: Any) {}
+
+            override fun onTimeout() {
+                received.trySend("timeout")
+            }
+        })
+        socket.emit("ack", "acked", object : Ack {
+            override fun call(vararg args: Any) {
+                received.trySend(args[0])
+            }
+        })
+        socket.emit("echo", "plain")
+        socket.emitConflated("key", "echo", "stale")
+        socket.emitConflated("key", "echo", "conflated")
+        socket.emit("echo", "after")
+
+        assertEquals(listOf<Any>("timeout", "acked", "plain", "conflated", "after"), List(5) { received.receive() })
+        socket.close()
+    }
+
+    @Test
+    fun typedListeners() = runTest(timeout = 10.seconds) {
+        val server = LoopbackServer().namespace("/") { socket ->
+            socket.emit("double", listOf(3.14159265358979))
+            socket.emit("null", listOf(JsonNull))
+            socket.emit("string", listOf("null"))
+        }
+        val socket = client(server, listOf(WebSocket.NAME)).await()
+        val double = CompletableDeferred<Double>()
+        val nullArg = CompletableDeferred<String?>()
+        val string = CompletableDeferred<String?>()
+        val untyped = CompletableDeferred<Array<out Any>>()
+        socket.on<Double>("double") { double.complete(it) }
+        socket.on("double") { untyped.complete(it) }
+        socket.on<String?>("null") { nullArg.complete(it) }
+        val listener = socket.on<String?>("string") { string.complete(it) }
+        connect(socket)
+
+        assertEquals(3.14159265358979, double.await())
+        // untyped listeners still get flattened args
+        assertTrue(untyped.await()[0] is Float)
+        assertEquals(null, nullArg.await())
+        assertEquals("null", string.await())
+
+        socket.off("string", listener)
+        assertTrue(!socket.hasListeners("string"))
+        socket.close()
+    }
+
+    @Test
+    fun heartbeatAndMsgPack() = runTest(timeout = 10.seconds) {
+        val server = LoopbackServer(parser = MsgPackParser, pingInterval = 100, pingTimeout = 200)
+        val socket = client(server, listOf(WebSocket.NAME)) { parser = MsgPackParser }.await()
+        connect(socket)
+
+        // a few heartbeats later the connection is still alive
+        withContext(Dispatchers.Default) { delay(800) }
+        assertTrue(socket.connected)
+        val args = socket.emitWithAck("ack", 1, "2", timeout = 5000)
+        assertEquals(listOf<Any>(1, "2"), args.toList())
+        socket.close()
+    }
+
+    @Test
+    fun ackThroughput() = runTest(timeout = 30.seconds) {
+        val socket = client(LoopbackServer(), listOf(WebSocket.NAME)).await()
+        connect(socket)
+
+        val count = 10000
+        val done = CompletableDeferred<Unit>()
+        var acked = 0
+        val ack = object : Ack {
+            override fun call(vararg args: Any) {
+                acked++
+                if (acked == count) {
+                    done.complete(Unit)
+                }
+            }
+        }
+        val start = TimeSource.Monotonic.markNow()
+        repeat(count) { socket.emit("ack", it, ack) }
+        done.await()
+        val elapsed = start.elapsedNow()
+        Logging.info(TAG, "$count acks in $elapsed, ${(count / elapsed.inWholeMicroseconds.toDouble() * 1e6).toLong()} acks/s")
+        socket.close()
+    }
+
+    companion object {
+        private const val TAG = "LoopbackServerTest"
+    }
+}
@@ -0,0 +1,164 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.EngineSocket
+import com.piasy.kmp.socketio.engineio.State
+import com.piasy.kmp.socketio.engineio.Transport
+import com.piasy.kmp.socketio.engineio.WorkThread
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respond
+import io.ktor.client.engine.mock.respondBadRequest
+import io.ktor.client.request.HttpRequestBuilder
+import io.ktor.client.request.request
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpMethod
+import io.ktor.http.HttpStatusCode
+import io.ktor.http.content.TextContent
+import io.ktor.http.headersOf
+import io.ktor.websocket.WebSocketSession
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.io.bytestring.ByteString
+import org.hildan.socketio.EngineIO
+import org.hildan.socketio.EngineIOPacket
+import org.hildan.socketio.SocketIOPacket
+
+/**
+ * [WebSocket] talking to a [LoopbackServer], frames are encoded and decoded
+ * the same way.
+ */
+internal class LoopbackWebSocket(
+    opt: Options,
+    scope: CoroutineScope,
+    rawMessage: Boolean,
+    private val server: LoopbackServer,
+) : Transport(opt, scope, WebSocket.NAME, rawMessage), LoopbackServer.Peer {
+
+    @WorkThread
+    override fun pause(onPause: () -> Unit) {
+        // ws don't need to pause
+    }
+
+    @WorkThread
+    override fun doOpen() {
+        logI("doOpen")
+        server.wsConnect(opt.query[EngineSocket.SID], this)
+    }
+
+    override fun onServerOpen() {
+        scope.launch { onOpen() }
+    }
+
+    override fun onServerFrame(data: Any) {
+        scope.launch {
+            val packet = try {
+                when (data) {
+                    is ByteString -> {
+                        opt.metrics?.onBytesReceived(name, data.size.toLong())
+                        opt.recorder?.record(name, false, data.toByteArray())
+                        EngineIO.decodeWsFrame(data)
+                    }
+
+                    is String -> {
+                        opt.metrics?.onBytesReceived(name, utf8Size(data))
+                        opt.recorder?.record(name, false, data)
+                        if (rawMessage) {
+                            EngineIO.decodeWsFrame(data, deserializePayload = { it })
+                        } else {
+                            EngineIO.decodeSocketIO(data)
+                        }
+                    }
+
+                    else -> return@launch
+                }
+            } catch (e: Exception) {
+                onError("onServerFrame decode error: ${e.message}")
+                return@launch
+            }
+            onPacket(packet)
+        }
+    }
+
+    override fun onServerClose() {
+        scope.launch {
+            if (state != State.CLOSED) {
+                onClose()
+            }
+        }
+    }
+
+    @WorkThread
+    override fun doSend(packets: List<EngineIOPacket<*>>) {
+        writable = false
+        // same as WebSocket, no drain event for probe ping
+        val isProbePing = packets.size == 1
+                && packets[0] is EngineIOPacket.Ping
+                && (packets[0] as EngineIOPacket.Ping).payload == EngineSocket.PROBE
+
+        for (pkt in packets) {
+            if (pkt is EngineIOPacket.BinaryData) {
+                opt.metrics?.onBytesSent(name, pkt.payload.size.toLong())
+                opt.recorder?.record(name, true, pkt.payload.toByteArray())
+                server.wsSend(this, pkt.payload)
+            } else {
+                val data = if (rawMessage) {
+                    EngineIO.encodeWsFrame(pkt, serializePayload = { it.toString() })
+                } else {
+                    @Suppress("UNCHECKED_CAST")
+                    EngineIO.encodeSocketIO(pkt as EngineIOPacket<SocketIOPacket>)
+                }
+                opt.metrics?.onBytesSent(name, utf8Size(data))
+                opt.recorder?.record(name, true, data)
+                server.wsSend(this, data)
+            }
+        }
+
+        scope.launch {
+            writable = true
+            if (!isProbePing) {
+                emit(EVENT_DRAIN, packets.size)
+            }
+        }
+    }
+
+    @WorkThread
+    override fun doClose(fromOpenState: Boolean) {
+        logI("doClose")
+        server.wsClose(this)
+    }
+}
+
+/**
+ * [HttpClientFactory] of the real [PollingXHR] talking to a [LoopbackServer],
+ * GET and POST requests are served in memory by a [MockEngine].
+ */
+internal class LoopbackHttpClientFactory(private val server: LoopbackServer) : HttpClientFactory {
+    private val client = HttpClient(MockEngine { request ->
+        val sid = request.url.parameters[EngineSocket.SID]
+        val result = CompletableDeferred<String?>()
+        if (request.method == HttpMethod.Post) {
+            val data = (request.body as TextContent).text
+            server.post(sid, data, onResponse = { result.complete("ok") }, onError = { result.complete(null) })
+        } else {
+            server.get(sid, onResponse = { result.complete(it) }, onError = { result.complete(null) })
+        }
+        val body = result.await()
+        if (body == null) {
+            respondBadRequest()
+        } else {
+            respond(body, HttpStatusCode.OK, headersOf(HttpHeaders.ContentType, "text/plain; charset=UTF-8"))
+        }
+    })
+
+    override suspend fun createWs(
+        url: String,
+        request: HttpRequestBuilder.() -> Unit,
+        block: suspend WebSocketSession.() -> Unit,
+    ) = throw UnsupportedOperationException("websocket is served by LoopbackWebSocket")
+
+    override suspend fun httpRequest(
+        url: String,
+        block: HttpRequestBuilder.() -> Unit
+    ) = client.request(url, block)
+}
@@ -0,0 +1,276 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.EngineSocket
+import com.piasy.kmp.socketio.engineio.On
+import com.piasy.kmp.socketio.engineio.State
+import com.piasy.kmp.socketio.engineio.Transport
+import com.piasy.kmp.socketio.engineio.WorkThread
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import org.hildan.socketio.EngineIOPacket
+import kotlin.concurrent.atomics.AtomicReference
+import kotlin.random.Random
+
+/**
+ * [TransportFactory] wrapping transports of [delegate] with a simulated network link,
+ * e.g. to see how upgrade, reconnect and buffering behave on a poor mobile network.
+ *
+ * Each direction of a transport is a FIFO link: a packet is transmitted after the
+ * previous one, taking `bytes / bandwidth`, then delivered after `latencyMs` plus a
+ * uniform jitter in `[0, jitterMs]`, without reordering. [stall] freezes links for
+ * a while, [drop] closes transports abruptly, without close handshake.
+ *
+ * Long polling GET requests of the delegate aren't delayed, only their responses.
+ *
+ * Only `delay` of the transport scope is used for timing, and jitter comes from a
+ * seeded [Random], so it's repeatable under the virtual time of kotlinx-coroutines-test,
+ * when the client and server (e.g. a [LoopbackServer]) run on a test scope.
+ */
+class NetworkSimulator(
+    private val delegate: TransportFactory,
+    seed: Long = 0,
+) : TransportFactory {
+    /**
+     * One way latency in milliseconds.
+     */
+    var latencyMs = 0L
+
+    /**
+     * Max extra latency in milliseconds.
+     */
+    var jitterMs = 0L
+
+    /**
+     * Bytes per second of each direction, 0 for unlimited.
+     */
+    var bandwidth = 0L
+
+    private val random = Random(seed)
+    private val transports = AtomicReference<List<SimulatedTransport>>(emptyList())
+
+    override fun create(
+        name: String,
+        opt: Transport.Options,
+        scope: CoroutineScope,
+        rawMessage: Boolean,
+    ): Transport {
+        val transport = SimulatedTransport(
+            copyOptions(opt), scope, delegate.create(name, opt, scope, rawMessage), this
+        )
+        update { it + transport }
+        return transport
+    }
+
+    /**
+     * Freeze both directions of current transports for [durationMs],
+     * packets are queued and delivered after that.
+     */
+    fun stall(durationMs: Long) {
+        transports.load().forEach { it.post { it.stall(durationMs) } }
+    }
+
+    /**
+     * Close current transports abruptly, like a lost connection.
+     */
+    fun drop() {
+        transports.load().forEach { it.post { it.drop() } }
+    }
+
+    @WorkThread
+    internal fun transmitMs(bytes: Long) = if (bandwidth > 0) bytes * 1000 / bandwidth else 0
+
+    @WorkThread
+    internal fun latency() = latencyMs + if (jitterMs > 0) random.nextLong(jitterMs + 1) else 0
+
+    internal fun remove(transport: SimulatedTransport) {
+        update { it - transport }
+    }
+
+    private fun update(block: (List<SimulatedTransport>) -> List<SimulatedTransport>) {
+        while (true) {
+            val current = transports.load()
+            if (transports.compareAndSet(current, block(current))) {
+                return
+            }
+        }
+    }
+
+    /**
+     * Options of the wrapper, sharing the query (sid is set on it) with the delegate,
+     * metrics are reported by the delegate only.
+     */
+    private fun copyOptions(opt: Transport.Options): Transport.Options {
+        val copy = Transport.Options()
+        copy.secure = opt.secure
+        copy.hostname = opt.hostname
+        copy.port = opt.port
+        copy.path = opt.path
+        copy.timestampRequests = opt.timestampRequests
+        copy.timestampParam = opt.timestampParam
+        copy.query = opt.query
+        copy.extraHeaders = opt.extraHeaders
+        copy.trustAllCerts = opt.trustAllCerts
+        copy.httpClient = opt.httpClient
+        copy.tracer = opt.tracer
+        return copy
+    }
+}
+
+/**
+ * A transport forwarding to [delegate] through simulated links, the delegate
+ * acts as the far end of the network.
+ */
+internal class SimulatedTransport(
+    opt: Options,
+    scope: CoroutineScope,
+    private val delegate: Transport,
+    private val network: NetworkSimulator,
+) : Transport(opt, scope, delegate.name, false) {
+    private val uplink = Link()
+    private val downlink = Link()
+    private var stalled: Job? = null
+    private var dropped = false
+    private val subs = ArrayList<On.Handle>()
+
+    init {
+        subs.add(On.on(delegate, EVENT_OPEN, object : Listener {
+            override fun call(vararg args: Any) {
+                downlink.transfer(0) { onOpen() }
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_PACKET, object : Listener {
+            override fun call(vararg args: Any) {
+                val packet = args.firstOrNull() as? EngineIOPacket<*> ?: return
+                if (packet is EngineIOPacket.Open) {
+                    // polling of the delegate needs sid before the delayed handshake is handled
+                    opt.query[EngineSocket.SID] = packet.sid
+                }
+                downlink.transfer(size(packet)) { onPacket(packet) }
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_DRAIN, object : Listener {
+            override fun call(vararg args: Any) {
+                // the delegate drained after uplink transfer
+                writable = true
+                emit(EVENT_DRAIN, *args)
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_ERROR, object : Listener {
+            override fun call(vararg args: Any) {
+                val msg = args.firstOrNull() as? String ?: "error"
+                downlink.transfer(0) { onError(msg) }
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_CLOSE, object : Listener {
+            override fun call(vararg args: Any) {
+                downlink.transfer(0) { onDelegateClose() }
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_REQUEST_HEADERS, object : Listener {
+            override fun call(vararg args: Any) {
+                emit(EVENT_REQUEST_HEADERS, *args)
+            }
+        }))
+        subs.add(On.on(delegate, EVENT_RESPONSE_HEADERS, object : Listener {
+            override fun call(vararg args: Any) {
+                emit(EVENT_RESPONSE_HEADERS, *args)
+            }
+        }))
+    }
+
+    fun post(block: () -> Unit) {
+        scope.launch { block() }
+    }
+
+    @WorkThread
+    override fun pause(onPause: () -> Unit) {
+        delegate.pause {
+            downlink.transfer(0) {
+                state = State.PAUSED
+                onPause()
+            }
+        }
+    }
+
+    @WorkThread
+    override fun doOpen() {
+        uplink.transfer(0) { delegate.open() }
+    }
+
+    @WorkThread
+    override fun doSend(packets: List<EngineIOPacket<*>>) {
+        writable = false
+        uplink.transfer(packets.sumOf { size(it) }) { delegate.send(packets) }
+    }
+
+    @WorkThread
+    override fun doClose(fromOpenState: Boolean) {
+        uplink.transfer(0) { delegate.close() }
+    }
+
+    @WorkThread
+    fun stall(durationMs: Long) {
+        val previous = stalled
+        stalled = scope.launch {
+            delay(durationMs)
+            previous?.join()
+        }
+    }
+
+    @WorkThread
+    fun drop() {
+        if (dropped || state == State.CLOSED) {
+            return
+        }
+        logI("drop")
+        dropped = true
+        subs.forEach { it.destroy() }
+        subs.clear()
+        delegate.close()
+        onDelegateClose()
+    }
+
+    @WorkThread
+    private fun onDelegateClose() {
+        network.remove(this)
+        onClose()
+    }
+
+    private fun size(packet: EngineIOPacket<*>): Long = when (packet) {
+        is EngineIOPacket.BinaryData -> packet.payload.size.toLong()
+        is EngineIOPacket.Message<*> -> 1 + utf8Size(packet.payload.toString())
+        else -> 1
+    }
+
+    /**
+     * One direction of the simulated network.
+     */
+    private inner class Link {
+        private var sending: Job? = null
+        private var delivering: Job? = null
+
+        @WorkThread
+        fun transfer(bytes: Long, deliver: () -> Unit) {
+            val prevSending = sending
+            val prevDelivering = delivering
+            val transmitMs = network.transmitMs(bytes)
+            val latency = network.latency()
+            val sent = scope.launch {
+                prevSending?.join()
+                stalled?.join()
+                delay(transmitMs)
+            }
+            sending = sent
+            delivering = scope.launch {
+                sent.join()
+                delay(latency)
+                prevDelivering?.join()
+                if (!dropped) {
+                    deliver()
+                }
+            }
+        }
+    }
+}
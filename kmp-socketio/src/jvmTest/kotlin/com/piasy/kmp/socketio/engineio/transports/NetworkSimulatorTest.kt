@@ -0,0 +1,154 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.TestUtil
+import com.piasy.kmp.socketio.socketio.Ack
+import com.piasy.kmp.socketio.socketio.IO
+import com.piasy.kmp.socketio.socketio.Manager
+import com.piasy.kmp.socketio.socketio.Socket
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.TestScope
+import kotlinx.coroutines.test.runTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/**
+ * Client, simulated network and loopback server all run on the test scope,
+ * so timings are in virtual time, and exact.
+ */
+class NetworkSimulatorTest {
+    private fun TestScope.client(
+        network: NetworkSimulator,
+        transports: List<String> = listOf(WebSocket.NAME),
+    ): Socket {
+        val opt = IO.Options()
+        opt.transports = transports
+        opt.transportFactory = network
+        opt.reconnectionDelay = 1000
+        opt.randomizationFactor = 0.0
+        val manager = Manager("http://loopback/", opt, backgroundScope)
+        return TestUtil.socket(manager, "/")
+    }
+
+    private fun TestScope.network(seed: Long = 0) =
+        NetworkSimulator(LoopbackServer(scope = backgroundScope), seed)
+
+    private suspend fun connect(socket: Socket) {
+        val connected = CompletableDeferred<Unit>()
+        socket.on(Socket.EVENT_CONNECT) { connected.complete(Unit) }
+        socket.open()
+        connected.await()
+    }
+
+    private suspend fun ack(socket: Socket, vararg args: Any): Array<out Any> {
+        val res = CompletableDeferred<Array<out Any>>()
+        socket.emit("ack", *args, object : Ack {
+            override fun call(vararg args: Any) {
+                res.complete(args)
+            }
+        })
+        return res.await()
+    }
+
+    @Test
+    fun latency() = runTest {
+        val network = network()
+        network.latencyMs = 100
+        val socket = client(network)
+
+        connect(socket)
+        // ws open, then socket.io connect, each takes a round trip
+        assertEquals(400, currentTime)
+
+        val start = currentTime
+        assertEquals(listOf<Any>("a"), ack(socket, "a").toList())
+        assertEquals(200, currentTime - start)
+    }
+
+    @Test
+    fun bandwidth() = runTest {
+        val network = network()
+        network.bandwidth = 10_000
+        val socket = client(network)
+        connect(socket)
+
+        val payload = "a".repeat(1000)
+        val start = currentTime
+        ack(socket, payload)
+        // about 1000 bytes each way
+        val elapsed = currentTime - start
+        assertTrue(elapsed in 200..250, "elapsed $elapsed")
+    }
+
+    @Test
+    fun jitterIsRepeatable() = runTest {
+        val rtts = ArrayList<List<Long>>()
+        repeat(2) {
+            val network = network(seed = 42)
+            network.latencyMs = 10
+            network.jitterMs = 100
+            val socket = client(network)
+            connect(socket)
+
+            val rtt = ArrayList<Long>()
+            repeat(10) { i ->
+                val start = currentTime
+                assertEquals(listOf<Any>(i), ack(socket, i).toList())
+                rtt.add(currentTime - start)
+            }
+            rtts.add(rtt)
+        }
+        assertEquals(rtts[0], rtts[1])
+        assertTrue(rtts[0].all { it in 20..220 }, "rtts ${rtts[0]}")
+        assertTrue(rtts[0].toSet().size > 1, "rtts ${rtts[0]}")
+    }
+
+    @Test
+    fun stall() = runTest {
+        val network = network()
+        network.latencyMs = 10
+        val socket = client(network)
+        connect(socket)
+
+        network.stall(1000)
+        val start = currentTime
+        ack(socket, 1)
+        assertEquals(1020, currentTime - start)
+    }
+
+    @Test
+    fun dropAndReconnect() = runTest {
+        val network = network()
+        val socket = client(network)
+        connect(socket)
+
+        val disconnected = CompletableDeferred<Array<out Any>>()
+        val reconnected = CompletableDeferred<Unit>()
+        socket.on(Socket.EVENT_DISCONNECT) { disconnected.complete(it) }
+        socket.on(Socket.EVENT_CONNECT) { reconnected.complete(Unit) }
+        delay(100)
+        network.drop()
+
+        assertEquals("transport close", disconnected.await()[0])
+        val start = currentTime
+        reconnected.await()
+        // reconnectionDelay without randomization
+        assertEquals(1000, currentTime - start)
+        assertEquals(listOf<Any>(1), ack(socket, 1).toList())
+    }
+
+    @Test
+    fun upgradeOnSlowNetwork() = runTest {
+        val network = network()
+        network.latencyMs = 300
+        network.bandwidth = 20_000
+        val socket = client(network, listOf(PollingXHR.NAME, WebSocket.NAME))
+        connect(socket)
+
+        while (TestUtil.engineSocket(socket)?.let { TestUtil.transportName(it) } != WebSocket.NAME) {
+            delay(10)
+        }
+        assertEquals(listOf<Any>("b"), ack(socket, "b").toList())
+    }
+}
@@ -0,0 +1,71 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.Transport
+import io.ktor.client.HttpClient
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.isActive
+import java.lang.ref.WeakReference
+import java.util.Collections
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Tracks what the default transports create, to find leaks in soak tests,
+ * the transports themselves are unchanged:
+ *
+ * - transports and HttpClients created by [DefaultHttpClientFactory] are weakly
+ *   referenced, so what's counted after a GC is still reachable;
+ * - active coroutines of the work scopes and io scopes of transports are counted.
+ *
+ * Only one tracker could be installed at a time.
+ */
+class ResourceTracker {
+    private val transports = ConcurrentLinkedQueue<WeakReference<Transport>>()
+    private val httpClients = ConcurrentLinkedQueue<WeakReference<HttpClient>>()
+    private val jobs = Collections.synchronizedMap(WeakHashMap<Job, Unit>())
+
+    private val observer = object : TransportObserver {
+        override fun onTransport(transport: Transport, scope: CoroutineScope, ioScope: CoroutineScope) {
+            transports.add(WeakReference(transport))
+            scope.coroutineContext[Job]?.let { jobs[it] = Unit }
+            ioScope.coroutineContext[Job]?.let { jobs[it] = Unit }
+        }
+
+        override fun onHttpClient(client: HttpClient) {
+            httpClients.add(WeakReference(client))
+        }
+    }
+
+    fun install() {
+        transportObserver = observer
+    }
+
+    fun uninstall() {
+        if (transportObserver === observer) {
+            transportObserver = null
+        }
+    }
+
+    /**
+     * Transports not yet garbage collected.
+     */
+    fun liveTransports() = live(transports).size
+
+    /**
+     * HttpClients not yet garbage collected, nor closed.
+     */
+    fun openHttpClients() = live(httpClients).count { it.isActive }
+
+    /**
+     * Active coroutines of work scopes and io scopes of transports.
+     */
+    fun liveCoroutines() = synchronized(jobs) { jobs.keys.toList() }.sumOf { active(it) }
+
+    private fun <T> live(refs: ConcurrentLinkedQueue<WeakReference<T>>): List<T> {
+        refs.removeIf { it.get() == null }
+        return refs.mapNotNull { it.get() }
+    }
+
+    private fun active(job: Job): Int = job.children.sumOf { (if (it.isActive) 1 else 0) + active(it) }
+}
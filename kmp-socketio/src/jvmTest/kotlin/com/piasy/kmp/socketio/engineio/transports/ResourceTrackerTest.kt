@@ -0,0 +1,33 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.Transport
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.cancel
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+class ResourceTrackerTest {
+
+    @Test
+    fun `track default transports`() {
+        val tracker = ResourceTracker()
+        val scope = CoroutineScope(Dispatchers.Default + SupervisorJob())
+        tracker.install()
+        try {
+            val ws = DefaultTransportFactory.create(WebSocket.NAME, Transport.Options(), scope, false)
+            val polling = DefaultTransportFactory.create(PollingXHR.NAME, Transport.Options(), scope, false)
+            assertEquals(2, tracker.liveTransports())
+            assertEquals(2, tracker.openHttpClients())
+            assertEquals(0, tracker.liveCoroutines())
+            // keep them reachable until counted
+            assertEquals(listOf(WebSocket.NAME, PollingXHR.NAME), listOf(ws.name, polling.name))
+        } finally {
+            tracker.uninstall()
+            scope.cancel()
+        }
+
+        assertEquals(null, transportObserver)
+    }
+}
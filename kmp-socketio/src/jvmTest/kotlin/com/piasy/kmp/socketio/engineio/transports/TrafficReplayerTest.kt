@@ -0,0 +1,114 @@
+package com.piasy.kmp.socketio.engineio.transports
+
+import com.piasy.kmp.socketio.engineio.TestUtil
+import com.piasy.kmp.socketio.engineio.TrafficRecorder
+import com.piasy.kmp.socketio.socketio.IO
+import com.piasy.kmp.socketio.socketio.Manager
+import com.piasy.kmp.socketio.socketio.Socket
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import kotlinx.io.bytestring.ByteString
+import java.io.File
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.seconds
+
+class TrafficReplayerTest {
+    private fun client(
+        factory: TransportFactory,
+        transports: List<String>,
+        block: IO.Options.() -> Unit = {},
+    ): CompletableDeferred<Socket> {
+        val opt = IO.Options()
+        opt.forceNew = true
+        opt.reconnection = false
+        opt.transports = transports
+        opt.transportFactory = factory
+        opt.block()
+        val socket = CompletableDeferred<Socket>()
+        IO.socket("http://loopback/", opt) { socket.complete(it) }
+        return socket
+    }
+
+    private fun collect(socket: Socket, events: MutableList<Pair<String, List<Any>>>) {
+        for (event in listOf("message", "echoBack")) {
+            socket.on(event) { events.add(event to it.toList()) }
+        }
+    }
+
+    private suspend fun connect(socket: Socket) {
+        val connected = CompletableDeferred<Unit>()
+        socket.on(Socket.EVENT_CONNECT) { connected.complete(Unit) }
+        socket.open()
+        connected.await()
+    }
+
+    @Test
+    fun recordAndReplay() = runTest(timeout = 10.seconds) {
+        val file = File.createTempFile("traffic", ".log")
+        file.deleteOnExit()
+        val recorder = TrafficRecorder.toFile(file.path)
+        val socket = client(LoopbackServer(), listOf(PollingXHR.NAME, WebSocket.NAME)) {
+            this.recorder = recorder
+        }.await()
+        val live = ArrayList<Pair<String, List<Any>>>()
+        collect(socket, live)
+        val echoBack = CompletableDeferred<Unit>()
+        socket.on("echoBack") { echoBack.complete(Unit) }
+        connect(socket)
+
+        withContext(Dispatchers.Default) {
+            while (TestUtil.engineSocket(socket)?.let { TestUtil.transportName(it) } != WebSocket.NAME) {
+                delay(10)
+            }
+        }
+        socket.emit("echo", 1, "2", ByteString(byteArrayOf(0x1, 0x3, 0x1, 0x4)))
+        echoBack.await()
+        socket.close()
+        recorder.close()
+
+        val frames = TrafficRecorder.readFile(file.path)
+        assertTrue(frames.any { it.outgoing } && frames.any { !it.outgoing })
+        assertTrue(frames.any { it.transport == PollingXHR.NAME } && frames.any { it.transport == WebSocket.NAME })
+        assertTrue(frames.any { it.data is ByteString })
+        assertEquals(frames.sortedBy { it.timeMicros }, frames)
+
+        val finished = CompletableDeferred<Unit>()
+        val replay = client(TrafficReplayer(frames, speed = 0.0) { finished.complete(Unit) },
+            listOf(PollingXHR.NAME, WebSocket.NAME)).await()
+        val replayed = ArrayList<Pair<String, List<Any>>>()
+        collect(replay, replayed)
+        connect(replay)
+        finished.await()
+        assertEquals(live, replayed)
+        replay.close()
+    }
+
+    @Test
+    fun recordedSpeed() = runTest {
+        val frames = listOf(
+            TrafficRecorder.Frame(
+                0, WebSocket.NAME, false,
+                "0{\"sid\":\"s\",\"upgrades\":[],\"pingInterval\":25000,\"pingTimeout\":20000}"
+            ),
+            TrafficRecorder.Frame(10_000, WebSocket.NAME, true, "40"),
+            TrafficRecorder.Frame(20_000, WebSocket.NAME, false, "40{\"sid\":\"a\"}"),
+            TrafficRecorder.Frame(520_000, WebSocket.NAME, false, "42[\"message\",\"a\"]"),
+        )
+        val opt = IO.Options()
+        opt.transports = listOf(WebSocket.NAME)
+        opt.transportFactory = TrafficReplayer(frames, speed = 2.0)
+        val socket = TestUtil.socket(Manager("http://loopback/", opt, backgroundScope), "/")
+        val message = CompletableDeferred<Array<out Any>>()
+        socket.on("message") { message.complete(it) }
+
+        connect(socket)
+        assertEquals(10, currentTime)
+        assertEquals(listOf<Any>("a"), message.await().toList())
+        assertEquals(260, currentTime)
+    }
+}
@@ -2,6 +2,8 @@ package com.piasy.kmp.socketio.socketio
 
 import kotlinx.io.bytestring.unsafe.UnsafeByteStringApi
 import kotlinx.io.bytestring.unsafe.UnsafeByteStringOperations
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonNull
 import kotlinx.serialization.json.JsonPrimitive
 import org.hildan.socketio.PayloadElement
 import org.hildan.socketio.SocketIOPacket
@@ -9,6 +11,7 @@ import kotlin.test.Test
 import kotlin.test.assertEquals
 import kotlin.test.assertFalse
 import kotlin.test.assertNull
+import kotlin.test.assertSame
 
 @OptIn(UnsafeByteStringApi::class)
 class BinaryPacketReconstructorTest {
@@ -56,4 +59,102 @@ class BinaryPacketReconstructorTest {
 
         assertEquals(0, dataList.size)
     }
+
+    @Test
+    fun `nested reconstruct`() {
+        val dataList = ArrayList<ArrayList<Any>>()
+
+        val obj = Json.parseToJsonElement(
+            """{"a":1,"b":[2,{"_placeholder":true,"num":1},null],"c":{"d":"x"}}"""
+        )
+        val payload = listOf(
+            PayloadElement.Json(JsonPrimitive("event")),
+            PayloadElement.Json(obj),
+            PayloadElement.AttachmentRef(0),
+        )
+        val packet = SocketIOPacket.BinaryEvent("ns", null, payload, 2)
+        val reconstructor = BinaryPacketReconstructor(packet) { _, _, data ->
+            dataList.add(data)
+        }
+
+        val bin0 = UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1, 0x3))
+        val bin1 = UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1, 0x4))
+        reconstructor.add(bin0)
+        reconstructor.add(bin1)
+
+        assertEquals(1, dataList.size)
+        assertEquals(JsonPrimitive("event"), dataList[0][0])
+        assertEquals(
+            mapOf(
+                "a" to 1,
+                "b" to listOf(2, bin1, null),
+                "c" to Json.parseToJsonElement("""{"d":"x"}"""),
+            ),
+            dataList[0][1]
+        )
+        assertEquals(bin0, dataList[0][2])
+    }
+
+    @Test
+    fun `json without placeholder is untouched`() {
+        val dataList = ArrayList<ArrayList<Any>>()
+
+        val obj = Json.parseToJsonElement("""{"a":[1,{"b":2}]}""")
+        val payload = listOf(PayloadElement.Json(obj), PayloadElement.AttachmentRef(0))
+        val packet = SocketIOPacket.BinaryEvent("ns", null, payload, 1)
+        val reconstructor = BinaryPacketReconstructor(packet) { _, _, data ->
+            dataList.add(data)
+        }
+        reconstructor.add(UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1)))
+
+        assertEquals(1, dataList.size)
+        assertSame(obj, dataList[0][0])
+    }
+
+    @Test
+    fun `wrong nested attachment index`() {
+        val dataList = ArrayList<ArrayList<Any>>()
+
+        val obj = Json.parseToJsonElement("""{"a":{"_placeholder":true,"num":1}}""")
+        val packet = SocketIOPacket.BinaryEvent("ns", null, listOf(PayloadElement.Json(obj)), 1)
+        val reconstructor = BinaryPacketReconstructor(packet) { _, _, data ->
+            dataList.add(data)
+        }
+        reconstructor.add(UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1)))
+
+        assertEquals(0, dataList.size)
+    }
+
+    @Test
+    fun `nested reconstruct with raw json args`() {
+        val dataList = ArrayList<ArrayList<Any>>()
+
+        val obj = Json.parseToJsonElement("""{"a":1,"b":[{"_placeholder":true,"num":0},null]}""")
+        val packet = SocketIOPacket.BinaryEvent("ns", null, listOf(PayloadElement.Json(obj)), 1)
+        val reconstructor = BinaryPacketReconstructor(packet, rawJsonArgs = true) { _, _, data ->
+            dataList.add(data)
+        }
+        val bin = UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1))
+        reconstructor.add(bin)
+
+        assertEquals(1, dataList.size)
+        assertEquals(mapOf("a" to JsonPrimitive(1), "b" to listOf(bin, JsonNull)), dataList[0][0])
+    }
+
+    @Test
+    fun `placeholder lookalikes are untouched`() {
+        val dataList = ArrayList<ArrayList<Any>>()
+
+        val obj = Json.parseToJsonElement(
+            """[{"_placeholder":true,"num":0,"extra":1},{"_placeholder":"true","num":0}]"""
+        )
+        val packet = SocketIOPacket.BinaryEvent("ns", null, listOf(PayloadElement.Json(obj), PayloadElement.AttachmentRef(0)), 1)
+        val reconstructor = BinaryPacketReconstructor(packet) { _, _, data ->
+            dataList.add(data)
+        }
+        reconstructor.add(UnsafeByteStringOperations.wrapUnsafe(byteArrayOf(0x1)))
+
+        assertEquals(1, dataList.size)
+        assertSame(obj, dataList[0][0])
+    }
 }
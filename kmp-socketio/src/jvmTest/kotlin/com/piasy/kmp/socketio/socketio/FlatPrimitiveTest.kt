@@ -0,0 +1,49 @@
+package com.piasy.kmp.socketio.socketio
+
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonNull
+import kotlinx.serialization.json.JsonPrimitive
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertSame
+
+class FlatPrimitiveTest {
+
+    private fun flat(json: String) = Json.parseToJsonElement(json).flatPrimitive()
+
+    @Test
+    fun `string bool and null`() {
+        assertEquals("123", flat("\"123\""))
+        assertEquals(true, flat("true"))
+        assertEquals(false, flat("false"))
+        assertEquals("null", JsonNull.flatPrimitive())
+    }
+
+    @Test
+    fun integers() {
+        assertEquals(0, flat("0"))
+        assertEquals(-1, flat("-1"))
+        assertEquals(Int.MAX_VALUE, flat("2147483647"))
+        assertEquals(Int.MIN_VALUE, flat("-2147483648"))
+        assertEquals(2147483648L, flat("2147483648"))
+        assertEquals(-2147483649L, flat("-2147483649"))
+        assertEquals(Long.MAX_VALUE, flat("9223372036854775807"))
+        assertEquals(Long.MIN_VALUE, flat("-9223372036854775808"))
+        assertEquals(100000, flat("1e5"))
+    }
+
+    @Test
+    fun floats() {
+        assertEquals(1.5f, flat("1.5"))
+        assertEquals(-2.25f, flat("-2.25"))
+        assertEquals(0.001f, flat("1E-3"))
+        assertEquals(9.223372E18f, flat("9223372036854775808"))
+    }
+
+    @Test
+    fun `non primitive is untouched`() {
+        val array = JsonArray(listOf(JsonPrimitive(1)))
+        assertSame(array, array.flatPrimitive())
+    }
+}
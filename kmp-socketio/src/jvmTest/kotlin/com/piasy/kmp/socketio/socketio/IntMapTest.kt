@@ -0,0 +1,85 @@
+package com.piasy.kmp.socketio.socketio
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class IntMapTest {
+
+    @Test
+    fun `put get remove`() {
+        val map = IntMap<String>()
+        assertTrue(map.isEmpty())
+        assertNull(map.put(1, "a"))
+        assertEquals("a", map.put(1, "b"))
+        map[2] = "c"
+
+        assertEquals(2, map.size)
+        assertEquals("b", map[1])
+        assertEquals("c", map[2])
+        assertNull(map[3])
+        assertTrue(1 in map)
+
+        assertEquals("b", map.remove(1))
+        assertNull(map.remove(1))
+        assertFalse(1 in map)
+        assertEquals(1, map.size)
+    }
+
+    @Test
+    fun `rehash keep all entries`() {
+        val map = IntMap<Int>(2)
+        for (i in 0 until 1000) {
+            map[i] = i * 2
+        }
+        assertEquals(1000, map.size)
+        for (i in 0 until 1000) {
+            assertEquals(i * 2, map[i])
+        }
+    }
+
+    @Test
+    fun `remove keep probe sequence`() {
+        val map = IntMap<Int>(16)
+        // keys differ by multiples of the capacity, more likely to collide
+        val keys = (0 until 7).map { it * 16 } + (0 until 7).map { it * 1024 + 1 }
+        keys.forEach { map[it] = it }
+
+        val removed = keys.filterIndexed { index, _ -> index % 3 == 0 }
+        removed.forEach { assertEquals(it, map.remove(it)) }
+
+        assertEquals(keys.size - removed.size, map.size)
+        for (key in keys) {
+            if (key in removed) {
+                assertNull(map[key])
+            } else {
+                assertEquals(key, map[key])
+            }
+        }
+    }
+
+    @Test
+    fun `random ops match HashMap`() {
+        val map = IntMap<Int>()
+        val expected = HashMap<Int, Int>()
+        val random = kotlin.random.Random(42)
+        repeat(100_000) {
+            val key = random.nextInt(512)
+            if (random.nextBoolean()) {
+                assertEquals(expected.put(key, it), map.put(key, it))
+            } else {
+                assertEquals(expected.remove(key), map.remove(key))
+            }
+        }
+        assertEquals(expected.size, map.size)
+        val values = ArrayList<Int>()
+        map.forEachValue { values.add(it) }
+        assertEquals(expected.values.sorted(), values.sorted())
+
+        map.clear()
+        assertTrue(map.isEmpty())
+        assertNull(map[expected.keys.first()])
+    }
+}
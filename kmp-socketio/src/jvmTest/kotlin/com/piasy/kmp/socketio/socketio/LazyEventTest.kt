@@ -0,0 +1,94 @@
+package com.piasy.kmp.socketio.socketio
+
+import com.piasy.kmp.socketio.engineio.TestUtil
+import com.piasy.kmp.socketio.engineio.TrafficRecorder
+import com.piasy.kmp.socketio.engineio.transports.TrafficReplayer
+import com.piasy.kmp.socketio.engineio.transports.WebSocket
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.test.runTest
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.buildJsonArray
+import org.hildan.socketio.SocketIOPacket
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertIs
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+class LazyEventTest {
+
+    @Test
+    fun `decode event header only`() {
+        val packet = LazyEvent.decode("2[\"foo\",1,{\"a\":\"b\"}]")
+        assertIs<LazyEvent>(packet)
+        assertEquals("/", packet.namespace)
+        assertNull(packet.ackId)
+        assertEquals("foo", packet.event)
+        assertEquals(3, packet.payload.size)
+        assertEquals(JsonPrimitive(1), packet.payload[1])
+    }
+
+    @Test
+    fun `decode event with namespace and ack id`() {
+        val packet = LazyEvent.decode("2/admin,12[\"bar\"]")
+        assertIs<LazyEvent>(packet)
+        assertEquals("/admin", packet.namespace)
+        assertEquals(12, packet.ackId)
+        assertEquals("bar", packet.event)
+        assertEquals(buildJsonArray { add(JsonPrimitive("bar")) }, packet.payload)
+    }
+
+    @Test
+    fun `fully decode escaped event name`() {
+        val packet = LazyEvent.decode("2[\"a\\\"b\",1]")
+        assertIs<SocketIOPacket.Event>(packet)
+        assertEquals(JsonPrimitive("a\"b"), packet.payload[0])
+    }
+
+    @Test
+    fun `fully decode other packets`() {
+        assertIs<SocketIOPacket.Connect>(LazyEvent.decode("0{\"sid\":\"abc\"}"))
+        assertIs<SocketIOPacket.Ack>(LazyEvent.decode("31[\"ok\"]"))
+        assertIs<SocketIOPacket.BinaryEvent>(LazyEvent.decode("51-[\"bin\",{\"_placeholder\":true,\"num\":0}]"))
+    }
+
+    @Test
+    fun `reject ack id overflow`() {
+        assertFailsWith<IllegalArgumentException> {
+            LazyEvent.decode("24294967296[\"foo\"]")
+        }
+    }
+
+    @Test
+    fun `malformed payload on access`() {
+        val packet = LazyEvent.decode("2[\"foo\",")
+        assertIs<LazyEvent>(packet)
+        assertFailsWith<IllegalArgumentException> { packet.payload }
+    }
+
+    @Test
+    fun `malformed payload is reported`() = runTest {
+        val frames = listOf(
+            "0{\"sid\":\"s\",\"upgrades\":[],\"pingInterval\":25000,\"pingTimeout\":20000}",
+            "40{\"sid\":\"a\"}",
+            "42[\"foo\",",
+            "42[\"foo\",1]",
+        ).map { TrafficRecorder.Frame(0, WebSocket.NAME, false, it) }
+        val opt = IO.Options()
+        opt.transports = listOf(WebSocket.NAME)
+        opt.lazyDecode = true
+        opt.transportFactory = TrafficReplayer(frames, speed = 0.0)
+        val manager = Manager("http://loopback/", opt, backgroundScope)
+        val error = CompletableDeferred<Array<out Any>>()
+        manager.on(Manager.EVENT_ERROR) { error.complete(it) }
+        val socket = TestUtil.socket(manager, "/")
+        val foo = CompletableDeferred<Array<out Any>>()
+        socket.on("foo") { foo.complete(it) }
+        socket.open()
+
+        assertTrue(error.await()[0].toString().startsWith("decode packet error"))
+        // later events are still handled
+        assertEquals(listOf<Any>(1), foo.await().toList())
+    }
+}
@@ -0,0 +1,141 @@
+package com.piasy.kmp.socketio.socketio
+
+import kotlinx.coroutines.test.advanceTimeBy
+import kotlinx.coroutines.test.advanceUntilIdle
+import kotlinx.coroutines.test.currentTime
+import kotlinx.coroutines.test.runTest
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
+
+class TimingWheelTest {
+
+    @Test
+    fun `fire after delay`() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<Long>()
+        wheel.schedule(100) { fired.add(currentTime) }
+
+        advanceTimeBy(99)
+        assertEquals(emptyList(), fired)
+        assertEquals(1, wheel.size)
+
+        advanceTimeBy(20)
+        assertEquals(listOf(100L), fired)
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun `zero delay fire at next tick`() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<Long>()
+        wheel.schedule(0) { fired.add(currentTime) }
+
+        advanceUntilIdle()
+        assertEquals(listOf(10L), fired)
+    }
+
+    @Test
+    fun `delay longer than one round`() = runTest {
+        val wheel = TimingWheel(this, 10, 4, testScheduler.timeSource)
+        val fired = ArrayList<String>()
+        wheel.schedule(20) { fired.add("20@$currentTime") }
+        wheel.schedule(60) { fired.add("60@$currentTime") }
+        wheel.schedule(100) { fired.add("100@$currentTime") }
+
+        advanceUntilIdle()
+        assertEquals(listOf("20@20", "60@60", "100@100"), fired)
+    }
+
+    @Test
+    fun cancel() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<String>()
+        val a = wheel.schedule(50) { fired.add("a") }
+        wheel.schedule(50) { fired.add("b") }
+        val c = wheel.schedule(50) { fired.add("c") }
+        wheel.schedule(30) { c.cancel() }
+
+        a.cancel()
+        // cancel twice is fine
+        a.cancel()
+        assertEquals(3, wheel.size)
+
+        advanceUntilIdle()
+        assertEquals(listOf("b"), fired)
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun `cancel by earlier task of the same tick`() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<String>()
+        // whichever fires first cancels the other
+        var a: TimingWheel.Timeout? = null
+        var b: TimingWheel.Timeout? = null
+        a = wheel.schedule(50) {
+            fired.add("a")
+            b?.cancel()
+        }
+        b = wheel.schedule(50) {
+            fired.add("b")
+            a?.cancel()
+        }
+
+        advanceUntilIdle()
+        assertEquals(1, fired.size)
+        assertEquals(0, wheel.size)
+    }
+
+    @Test
+    fun `earlier timeout while sleeping`() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<Long>()
+        wheel.schedule(1000) { fired.add(currentTime) }
+        advanceTimeBy(100)
+        wheel.schedule(30) { fired.add(currentTime) }
+
+        advanceUntilIdle()
+        assertEquals(listOf(130L, 1000L), fired)
+    }
+
+    @Test
+    fun `sleep until next bucket`() = runTest {
+        val clock = CountingTimeSource(testScheduler.timeSource)
+        val wheel = TimingWheel(this, 10, 512, clock)
+        val fired = ArrayList<Long>()
+        wheel.schedule(30_000) { fired.add(currentTime) }
+
+        advanceUntilIdle()
+        assertEquals(listOf(30_000L), fired)
+        // wake once per round of the wheel, instead of every tick
+        assertTrue(clock.reads < 30, "reads ${clock.reads}")
+    }
+
+    @Test
+    fun `restart after idle`() = runTest {
+        val wheel = TimingWheel(this, 10, 8, testScheduler.timeSource)
+        val fired = ArrayList<Long>()
+        wheel.schedule(30) { fired.add(currentTime) }
+        advanceUntilIdle()
+
+        advanceTimeBy(1000)
+        wheel.schedule(30) { fired.add(currentTime) }
+        advanceUntilIdle()
+
+        assertEquals(listOf(30L, 1060L), fired)
+    }
+
+    private class CountingTimeSource(private val source: TimeSource) : TimeSource {
+        var reads = 0
+
+        override fun markNow(): TimeMark {
+            val mark = source.markNow()
+            return object : TimeMark {
+                override fun elapsedNow() = mark.elapsedNow().also { reads++ }
+            }
+        }
+    }
+}
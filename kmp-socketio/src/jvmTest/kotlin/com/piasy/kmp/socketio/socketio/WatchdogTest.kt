@@ -0,0 +1,105 @@
+package com.piasy.kmp.socketio.socketio
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Runnable
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import kotlinx.coroutines.withContext
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.coroutines.ContinuationInterceptor
+import kotlin.coroutines.CoroutineContext
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+import kotlin.time.Duration.Companion.seconds
+
+class WatchdogTest {
+
+    @Test
+    fun `report stalled work thread with its stack`() {
+        val dispatcher = WatchedDispatcher(Dispatchers.Default.limitedParallelism(1))
+        val stalls = LinkedBlockingQueue<Pair<Long, String?>>()
+        val watchdog = Watchdog(dispatcher, 20, 100) { stalledMs, stack -> stalls.offer(Pair(stalledMs, stack)) }
+        watchdog.start()
+        try {
+            CoroutineScope(dispatcher).launch { blockWorkThread() }
+
+            val stall = stalls.poll(2, TimeUnit.SECONDS)!!
+            assertTrue(stall.first >= 100, "${stall.first}")
+            assertTrue(stall.second!!.contains("blockWorkThread"), stall.second)
+
+            // reported once per stall
+            Thread.sleep(500)
+            assertEquals(0, stalls.size)
+        } finally {
+            watchdog.stop()
+        }
+    }
+
+    @Test
+    fun `no report when work thread is idle`() {
+        val dispatcher = WatchedDispatcher(Dispatchers.Default.limitedParallelism(1))
+        val stalls = LinkedBlockingQueue<Long>()
+        val watchdog = Watchdog(dispatcher, 10, 200) { stalledMs, _ -> stalls.offer(stalledMs) }
+        watchdog.start()
+        repeat(10) {
+            CoroutineScope(dispatcher).launch { Thread.sleep(10) }
+        }
+        Thread.sleep(300)
+        watchdog.stop()
+        assertEquals(0, stalls.size)
+        assertFalse(dispatcher.watched)
+    }
+
+    @Test
+    fun `post heartbeats every interval shorter than stall`() {
+        val heartbeats = AtomicInteger()
+        val delegate = Dispatchers.Default.limitedParallelism(1)
+        val dispatcher = WatchedDispatcher(object : CoroutineDispatcher() {
+            override fun dispatch(context: CoroutineContext, block: Runnable) {
+                heartbeats.incrementAndGet()
+                delegate.dispatch(context, block)
+            }
+        })
+        val watchdog = Watchdog(dispatcher, 10, 1000) { _, _ -> }
+        watchdog.start()
+        Thread.sleep(300)
+        watchdog.stop()
+        assertTrue(heartbeats.get() >= 10, "${heartbeats.get()}")
+    }
+
+    @Test
+    fun `stopped before start never watches`() {
+        val dispatcher = WatchedDispatcher(Dispatchers.Default.limitedParallelism(1))
+        val watchdog = Watchdog(dispatcher, 10, 100) { _, _ -> }
+        watchdog.stop()
+        watchdog.start()
+        assertFalse(dispatcher.watched)
+
+        // and the previous one stopping late doesn't unwatch the current one
+        val current = Watchdog(dispatcher, 10, 100) { _, _ -> }
+        current.start()
+        watchdog.stop()
+        assertTrue(dispatcher.watched)
+        current.stop()
+        assertFalse(dispatcher.watched)
+    }
+
+    @Test
+    fun `delay is scheduled by the wrapped dispatcher`() = runTest(timeout = 10.seconds) {
+        val dispatcher = WatchedDispatcher(coroutineContext[ContinuationInterceptor] as CoroutineDispatcher)
+        // virtual time of the test dispatcher, not a real minute
+        withContext(dispatcher) { delay(60_000) }
+        assertEquals(60_000, currentTime)
+    }
+
+    private fun blockWorkThread() {
+        Thread.sleep(400)
+    }
+}
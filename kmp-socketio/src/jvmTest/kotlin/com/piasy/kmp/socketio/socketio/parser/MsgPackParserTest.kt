@@ -0,0 +1,104 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import kotlinx.io.bytestring.ByteString
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.buildJsonArray
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.put
+import org.hildan.socketio.PayloadElement
+import org.hildan.socketio.SocketIOPacket
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class MsgPackParserTest {
+
+    private fun bytes(hex: String) = ByteString(hex.chunked(2).map { it.toInt(16).toByte() }.toByteArray())
+
+    @Test
+    fun `decode notepack encoded event`() {
+        // notepack.encode({type: 2, data: ["a", 1], nsp: "/"})
+        val packets = MsgPackParser.decode(bytes("83a47479706502a46461746192a16101a36e7370a12f"))
+        assertEquals(
+            listOf(SocketIOPacket.Event("/", null, buildJsonArray {
+                add(JsonPrimitive("a"))
+                add(JsonPrimitive(1))
+            })),
+            packets
+        )
+    }
+
+    @Test
+    fun `encode event without ack id`() {
+        val packet = SocketIOPacket.Event("/foo", null, buildJsonArray {
+            add(JsonPrimitive("hi"))
+            add(JsonPrimitive(1))
+        })
+        assertEquals(
+            listOf(bytes("83a47479706502a46461746192a2686901a36e7370a42f666f6f")),
+            MsgPackParser.encode(packet, emptyList())
+        )
+    }
+
+    @Test
+    fun `connect round trip`() {
+        val packet = SocketIOPacket.Connect("/", buildJsonObject { put("token", "abc") })
+        val encoded = MsgPackParser.encode(packet, emptyList())
+        assertEquals(listOf(packet), MsgPackParser.decode(encoded.single()))
+    }
+
+    @Test
+    fun `numbers round trip`() {
+        val payload = Json.parseToJsonElement(
+            """["n",0,127,128,255,256,65535,65536,4294967296,-1,-32,-33,-128,-129,-32768,-32769,-2147483649,1.5,-0.25]"""
+        )
+        val packet = SocketIOPacket.Ack("/", 3, payload as kotlinx.serialization.json.JsonArray)
+        val decoded = MsgPackParser.decode(MsgPackParser.encode(packet, emptyList()).single())
+        assertEquals(listOf(packet), decoded)
+    }
+
+    @Test
+    fun `binary values are inline`() {
+        val bin0 = ByteString(byteArrayOf(1))
+        val bin1 = ByteString(byteArrayOf(2, 3))
+        val obj = Json.parseToJsonElement("""{"a":[{"_placeholder":true,"num":1}]}""")
+        val packet = SocketIOPacket.BinaryEvent(
+            "/", 7, listOf(
+                PayloadElement.Json(JsonPrimitive("ev")),
+                PayloadElement.AttachmentRef(0),
+                PayloadElement.Json(obj),
+            ), 2
+        )
+
+        val encoded = MsgPackParser.encode(packet, listOf(bin0, bin1))
+        assertEquals(1, encoded.size)
+
+        // attachments are numbered in decoding order
+        val decoded = MsgPackParser.decode(encoded[0])
+        assertEquals(
+            listOf(
+                SocketIOPacket.BinaryEvent(
+                    "/", 7, listOf(
+                        PayloadElement.Json(JsonPrimitive("ev")),
+                        PayloadElement.Json(Json.parseToJsonElement("""{"_placeholder":true,"num":0}""")),
+                        PayloadElement.Json(Json.parseToJsonElement("""{"a":[{"_placeholder":true,"num":1}]}""")),
+                    ), 2
+                ),
+                bin0,
+                bin1,
+            ),
+            decoded
+        )
+    }
+
+    @Test
+    fun `reject forged container length`() {
+        // array32/map32 of 0x7fffffff elements with only 1 following, and a negative Int length
+        for (hex in listOf("dd7fffffff01", "df7fffffffa16101", "ddffffffff01")) {
+            assertFailsWith<IllegalArgumentException> {
+                MsgPackParser.decode(bytes(hex))
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import com.piasy.kmp.xlog.Logging
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import org.hildan.socketio.SocketIO
+import org.hildan.socketio.SocketIOPacket
+import org.junit.Assume
+import java.lang.management.ManagementFactory
+import kotlin.test.Test
+import kotlin.time.Duration
+import kotlin.time.measureTime
+
+/**
+ * Compares [TextCodec] with the library codec, throughput and allocated bytes
+ * per packet, of a small and a large event. Skipped unless `-Dsocketio.bench=true`,
+ * `-Dsocketio.bench.rounds` sets the rounds of each measurement, default 20000.
+ *
+ * e.g. `./gradlew :kmp-socketio:jvmTest --tests com.piasy.kmp.socketio.socketio.parser.TextCodecBenchmark
+ * -Dsocketio.bench=true`
+ */
+class TextCodecBenchmark {
+    private val small = SocketIOPacket.Event(
+        "/", 1, Json.parseToJsonElement(
+            """["update",{"id":123,"name":"a \"quoted\"\n\u0001name","pos":[1.5,-2,3e10],"ok":true,"none":null}]"""
+        ) as JsonArray
+    )
+    private val large = SocketIOPacket.Event(
+        "/chat", 2, Json.parseToJsonElement(
+            (0 until 50).joinToString(",", "[\"batch\",", "]") {
+                """{"id":$it,"text":"message $it with \"escapes\"\tand unicode ü","tags":["a","b"],"score":$it.5}"""
+            }
+        ) as JsonArray
+    )
+
+    @Test
+    fun benchmark() {
+        Assume.assumeTrue("benchmark disabled", System.getProperty("socketio.bench").toBoolean())
+        val rounds = System.getProperty("socketio.bench.rounds")?.toInt() ?: 20_000
+        measure("small", small, rounds)
+        measure("large", large, rounds / 10)
+    }
+
+    private fun measure(name: String, packet: SocketIOPacket, rounds: Int) {
+        val text = SocketIO.encode(packet)
+        // warm up both paths
+        repeat(rounds) {
+            SocketIO.decode(SocketIO.encode(packet))
+            TextCodec.decode(TextCodec.encode(packet))
+        }
+        val results = listOf(
+            "library encode" to run(rounds) { SocketIO.encode(packet) },
+            "TextCodec encode" to run(rounds) { TextCodec.encode(packet) },
+            "library decode" to run(rounds) { SocketIO.decode(text) },
+            "TextCodec decode" to run(rounds) { TextCodec.decode(text) },
+        )
+        Logging.info(
+            "TextCodecBenchmark",
+            "$name ${text.length}B, $rounds rounds: " + results.joinToString { (path, result) ->
+                "$path ${result.first}, ${result.second / rounds}B/op"
+            }
+        )
+    }
+
+    private inline fun run(rounds: Int, block: () -> Any): Pair<Duration, Long> {
+        val before = allocatedBytes()
+        val time = measureTime { repeat(rounds) { block() } }
+        return Pair(time, allocatedBytes() - before)
+    }
+
+    private fun allocatedBytes(): Long {
+        val bean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        return bean.getThreadAllocatedBytes(Thread.currentThread().id)
+    }
+}
@@ -0,0 +1,92 @@
+package com.piasy.kmp.socketio.socketio.parser
+
+import kotlinx.serialization.json.Json
+import kotlinx.serialization.json.JsonArray
+import kotlinx.serialization.json.JsonObject
+import kotlinx.serialization.json.JsonPrimitive
+import kotlinx.serialization.json.buildJsonArray
+import kotlinx.serialization.json.buildJsonObject
+import kotlinx.serialization.json.put
+import org.hildan.socketio.PayloadElement
+import org.hildan.socketio.SocketIO
+import org.hildan.socketio.SocketIOPacket
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+
+class TextCodecTest {
+    private val payload = Json.parseToJsonElement(
+        """["update",{"id":123,"name":"a \"quoted\"\n\u0001name","pos":[1.5,-2,3e10],"ok":true,"none":null}]"""
+    ) as JsonArray
+
+    private val packets = listOf(
+        SocketIOPacket.Connect("/", null),
+        SocketIOPacket.Connect("/admin", buildJsonObject { put("token", "abc") }),
+        SocketIOPacket.Disconnect("/admin"),
+        SocketIOPacket.ConnectError("/", JsonPrimitive("not authorized")),
+        SocketIOPacket.Event("/", null, payload),
+        SocketIOPacket.Event("/admin", 12, payload),
+        SocketIOPacket.Ack("/", 3, buildJsonArray { add(JsonPrimitive("ok")) }),
+        SocketIOPacket.BinaryEvent(
+            "/", 4, listOf(
+                PayloadElement.Json(JsonPrimitive("bin")),
+                PayloadElement.AttachmentRef(0),
+                PayloadElement.Json(JsonPrimitive(1)),
+            ), 1
+        ),
+        SocketIOPacket.BinaryAck("/admin", 5, listOf(PayloadElement.AttachmentRef(0)), 1),
+    )
+
+    @Test
+    fun `encode the same as library`() {
+        for (packet in packets) {
+            assertEquals(SocketIO.encode(packet), TextCodec.encode(packet))
+        }
+    }
+
+    @Test
+    fun `decode the same as library`() {
+        for (packet in packets) {
+            val text = SocketIO.encode(packet)
+            assertEquals(SocketIO.decode(text), TextCodec.decode(text))
+        }
+    }
+
+    @Test
+    fun `decode bad packets`() {
+        assertFailsWith<IllegalArgumentException> { TextCodec.decode("") }
+        assertFailsWith<IllegalArgumentException> { TextCodec.decode("9") }
+        assertFailsWith<IllegalArgumentException> { TextCodec.decode("3[\"no ack id\"]") }
+        assertFailsWith<IllegalArgumentException> { TextCodec.decode("5[\"no attachments\"]") }
+        assertFailsWith<IllegalArgumentException> { TextCodec.decode("2{\"not\":\"array\"}") }
+    }
+
+    @Test
+    fun `decode payload json`() {
+        val texts = listOf(
+            """2[ "a" , { "b" : [ ] , "c" : { } } , -0.5e+3 , 0 , 1E2 , true , false , null ]""",
+            """2["\"\\\/\b\f\n\r\t\u00e9\ud83d\ude00",{"k\u0041":"plain"},"tail\n"]""",
+            """2["deep",[[[[{"a":[1,[2,[3]]]}]]]]]""",
+            """0{"token":"abc","n":12345678901234567890}""",
+        )
+        for (text in texts) {
+            assertEquals(Json.parseToJsonElement(text.substring(1)), TextCodec.parsePayload(text, 1))
+        }
+        // numbers keep their original text
+        val number = (TextCodec.decode("2[\"n\",3e10]") as SocketIOPacket.Event).payload[1]
+        assertEquals("3e10", (number as JsonPrimitive).content)
+        assertEquals(false, number.isString)
+    }
+
+    @Test
+    fun `decode bad payload json`() {
+        val texts = listOf(
+            "2[\"a\"", "2[\"a\",]", "2[\"a\"]x", "2[\"a]", "2[\"\\x\"]", "2[\"\\u12\"]",
+            "2[01]", "2[-]", "2[1.]", "2[1e]", "2[tru]", "2[\"a\":1]", "2{\"a\"}", "2{1:2}",
+            "2" + "[".repeat(1000) + "]".repeat(1000),
+        )
+        for (text in texts) {
+            assertFailsWith<IllegalArgumentException>(text) { TextCodec.decode(text) }
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.IO
+
+internal actual val recorderDispatcher: CoroutineDispatcher = Dispatchers.IO
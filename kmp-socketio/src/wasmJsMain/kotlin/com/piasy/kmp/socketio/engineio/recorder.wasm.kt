@@ -0,0 +1,7 @@
+package com.piasy.kmp.socketio.engineio
+
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.Dispatchers
+
+// no blocking io dispatcher on this platform
+internal actual val recorderDispatcher: CoroutineDispatcher = Dispatchers.Default